@@ -0,0 +1,64 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/// AuthorityTokenGenerator runs on every login of a front service user, as the attribute definition of the authority
+/// token.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthorityTokenGeneratorBenchmark {
+
+    /// Whether the JSESSIONID comes from the response Set-Cookie header (first login) or the request Cookie header.
+    @Param({"false", "true"})
+    public boolean newSession;
+
+    @Param({"V1", "V2"})
+    public AuthorityTokenGenerator.Format format;
+
+    private AuthorityTokenGenerator generator;
+
+    private ProfileRequestContext prc;
+
+    private MockHttpServletRequest request;
+
+    private MockHttpServletResponse response;
+
+    @Setup
+    public void setup() throws Exception {
+        Config config = BenchmarkSupport.newConfig(50, 10);
+        generator = BenchmarkSupport.newAuthorityTokenGenerator(config, BenchmarkSupport.newDataSealer(), format);
+        request = BenchmarkSupport.newLoginRequest(newSession);
+        response = BenchmarkSupport.newLoginResponse(newSession);
+        prc = BenchmarkSupport.newProfileRequestContext(BenchmarkSupport.frontID(25), request, response);
+    }
+
+    @Benchmark
+    public List<IdPAttributeValue> apply() {
+        return generator.apply(prc);
+    }
+
+    @Benchmark
+    public String getRealJsessionid() {
+        return generator.getRealJsessionid("JSESSIONID", request, response);
+    }
+}
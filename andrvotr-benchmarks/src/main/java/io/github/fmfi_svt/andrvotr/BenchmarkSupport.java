@@ -0,0 +1,260 @@
+package io.github.fmfi_svt.andrvotr;
+
+import com.codahale.metrics.MetricRegistry;
+import java.lang.reflect.Proxy;
+import java.security.KeyException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import javax.annotation.Nonnull;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import net.shibboleth.idp.profile.context.SpringRequestContext;
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.context.SessionContext;
+import net.shibboleth.profile.context.RelyingPartyContext;
+import net.shibboleth.shared.collection.Pair;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.security.DataSealer;
+import net.shibboleth.shared.security.DataSealerKeyStrategy;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.webflow.test.MockExternalContext;
+import org.springframework.webflow.test.MockRequestContext;
+
+/// Builds the objects shared by the benchmarks: andrvotr components wired like in postconfig.xml, and mock
+/// requests that look like what Jetty and Shibboleth would pass to them.
+final class BenchmarkSupport {
+    private BenchmarkSupport() {}
+
+    static final String IDP_ENTITY_ID = "https://idp.example.com/idp/shibboleth";
+
+    static final String IDP_HOST = "idp.example.com";
+
+    static final String IDP_SESSION_COOKIE_NAME = "shib_idp_session";
+
+    static final String IDP_SESSION_ID = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    static final String SHORT_JSESSIONID = "node0x7z1v2c3b4n5m6a7s8d9f0g";
+
+    static final String LONG_JSESSIONID = SHORT_JSESSIONID + ".node0";
+
+    static String frontID(int i) {
+        return "https://front" + i + ".example.com/shibboleth";
+    }
+
+    static String backID(int i, int j) {
+        return "https://back" + i + "-" + j + ".example.com/shibboleth";
+    }
+
+    static String apiKey(int i, int k) {
+        return "api-key-" + i + "-" + k + "-0123456789abcdef";
+    }
+
+    /// A DataSealer with a random AES key, instead of the sealer.jks keystore used by a real IdP.
+    static @Nonnull DataSealer newDataSealer() throws ComponentInitializationException, NoSuchAlgorithmException {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        SecretKey key = generator.generateKey();
+
+        DataSealer sealer = new DataSealer();
+        sealer.setKeyStrategy(new DataSealerKeyStrategy() {
+            @Override
+            public @Nonnull Pair<String, SecretKey> getDefaultKey() {
+                return new Pair<>("benchmark", key);
+            }
+
+            @Override
+            public @Nonnull SecretKey getKey(@Nonnull String name) throws KeyException {
+                if (!"benchmark".equals(name)) throw new KeyException("Unknown key " + name);
+                return key;
+            }
+        });
+        sealer.initialize();
+        return sealer;
+    }
+
+    /// A Config with `fronts` front services, each with 2 API keys (like during key rotation) and `backsPerFront`
+    /// back services.
+    static @Nonnull Config newConfig(int fronts, int backsPerFront) throws ComponentInitializationException {
+        StringBuilder apiKeys = new StringBuilder("[");
+        StringBuilder allowedConnections = new StringBuilder("[");
+        for (int i = 0; i < fronts; i++) {
+            for (int k = 0; k < 2; k++) {
+                apiKeys.append(' ').append(frontID(i)).append("##").append(apiKey(i, k));
+            }
+            for (int j = 0; j < backsPerFront; j++) {
+                allowedConnections.append(' ').append(frontID(i)).append(">>").append(backID(i, j));
+            }
+        }
+        apiKeys.append(" ]");
+        allowedConnections.append(" ]");
+
+        Config config = new Config();
+        config.setApiKeys(apiKeys.toString());
+        config.setAllowedConnections(allowedConnections.toString());
+        config.initialize();
+        return config;
+    }
+
+    static @Nonnull AuthorityTokenGenerator newAuthorityTokenGenerator(
+            @Nonnull Config config, @Nonnull DataSealer sealer, @Nonnull AuthorityTokenGenerator.Format format)
+            throws ComponentInitializationException {
+        AuthorityTokenGenerator generator = new AuthorityTokenGenerator();
+        generator.setConfig(config);
+        generator.setDataSealer(sealer);
+        generator.setIdpSessionCookieName(IDP_SESSION_COOKIE_NAME);
+        generator.setTokenLifetime(Duration.ofMinutes(5));
+        generator.setTokenFormat(format);
+        generator.setAuditLog(newAuditLog(newMetrics(new MetricRegistry())));
+        generator.initialize();
+        return generator;
+    }
+
+    static @Nonnull FabricationTokens newFabricationTokens(@Nonnull DataSealer sealer)
+            throws ComponentInitializationException {
+        FabricationTokens fabricationTokens = new FabricationTokens();
+        fabricationTokens.setDataSealer(sealer);
+        fabricationTokens.initialize();
+        return fabricationTokens;
+    }
+
+    static @Nonnull FabricationMetrics newMetrics(@Nonnull MetricRegistry registry)
+            throws ComponentInitializationException {
+        FabricationMetrics metrics = new FabricationMetrics();
+        metrics.setMetricRegistry(registry);
+        metrics.initialize();
+        return metrics;
+    }
+
+    /// The benchmark configs have no quotas, so the StorageService is never used either.
+    static @Nonnull FabricationQuotas newFabricationQuotas(@Nonnull Config config)
+            throws ComponentInitializationException {
+        MemoryStorageService storageService = new MemoryStorageService();
+        storageService.setId("benchmark");
+        storageService.initialize();
+        FabricationQuotas quotas = new FabricationQuotas();
+        quotas.setStorageService(storageService);
+        quotas.setConfig(config);
+        quotas.initialize();
+        return quotas;
+    }
+
+    /// No sessions end during the benchmarks, so only the Bloom filter is checked.
+    static @Nonnull EndedSessions newEndedSessions() throws ComponentInitializationException {
+        MemoryStorageService storageService = new MemoryStorageService();
+        storageService.setId("benchmark-ended-sessions");
+        storageService.initialize();
+        EndedSessions endedSessions = new EndedSessions();
+        endedSessions.setStorageService(storageService);
+        endedSessions.setIdpSessionCookieName(IDP_SESSION_COOKIE_NAME);
+        endedSessions.setRetention(Duration.ofMinutes(5));
+        endedSessions.initialize();
+        return endedSessions;
+    }
+
+    /// Disabled, like in the default configuration.
+    static @Nonnull SessionLivenessCheck newSessionLivenessCheck() throws ComponentInitializationException {
+        SessionLivenessCheck check = new SessionLivenessCheck();
+        check.initialize();
+        return check;
+    }
+
+    /// The audit log is disabled, like in the default configuration.
+    static @Nonnull AuditLog newAuditLog(@Nonnull FabricationMetrics metrics) throws ComponentInitializationException {
+        AuditLog auditLog = new AuditLog();
+        auditLog.setMetrics(metrics);
+        auditLog.initialize();
+        return auditLog;
+    }
+
+    /// The HttpClients are never used, because the benchmarks don't send nested requests or use /login.
+    static @Nonnull HttpController newHttpController(
+            @Nonnull Config config, @Nonnull DataSealer sealer, int authorityTokenCacheSize)
+            throws ComponentInitializationException {
+        HttpController controller = new HttpController();
+        controller.setHttpClient(HttpClients.createMinimal());
+        controller.setLoginHttpClient(HttpClients.createMinimal());
+        controller.setConfig(config);
+        controller.setDataSealer(sealer);
+        controller.setFabricationTokens(newFabricationTokens(sealer));
+        FabricationMetrics metrics = newMetrics(new MetricRegistry());
+        controller.setMetrics(metrics);
+        controller.setFabricationQuotas(newFabricationQuotas(config));
+        controller.setAuditLog(newAuditLog(metrics));
+        controller.setEndedSessions(newEndedSessions());
+        controller.setSessionLivenessCheck(newSessionLivenessCheck());
+        controller.setIdpEntityID(IDP_ENTITY_ID);
+        controller.setAuthorityTokenCacheSize(authorityTokenCacheSize);
+        controller.initialize();
+        return controller;
+    }
+
+    /// StubSsoFlow doesn't read IdP sessions. This only satisfies HttpController, which requires server-side IdP
+    /// session storage in IN_PROCESS mode.
+    static @Nonnull MemoryStorageService newIdpSessionStorageService() throws ComponentInitializationException {
+        MemoryStorageService storageService = new MemoryStorageService();
+        storageService.setId("benchmark-idp-sessions");
+        storageService.initialize();
+        return storageService;
+    }
+
+    /// Only getId() and getPrincipalName() are used by AuthorityTokenGenerator. A proxy avoids implementing the rest,
+    /// and unlike a mocking library it doesn't allocate when called without arguments.
+    static @Nonnull IdPSession newIdPSession() {
+        return (IdPSession) Proxy.newProxyInstance(
+                IdPSession.class.getClassLoader(), new Class<?>[] {IdPSession.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return IDP_SESSION_ID;
+                        case "getPrincipalName":
+                            return "user";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /// A request to the IdP during a front service login. If `newSession` is true, the servlet session was just created
+    /// and the JSESSIONID is in the response Set-Cookie header, otherwise it is in the request Cookie header.
+    static @Nonnull MockHttpServletRequest newLoginRequest(boolean newSession) {
+        MockServletContext servletContext = new MockServletContext();
+        MockHttpServletRequest request =
+                new MockHttpServletRequest(servletContext, "GET", "/idp/profile/SAML2/Redirect/SSO");
+        MockHttpSession session = new MockHttpSession(servletContext, SHORT_JSESSIONID);
+        session.setNew(newSession);
+        request.setSession(session);
+        if (!newSession) {
+            request.addHeader("Cookie", "JSESSIONID=" + LONG_JSESSIONID + "; " + IDP_SESSION_COOKIE_NAME + "=x");
+            request.setRequestedSessionIdValid(true);
+        }
+        return request;
+    }
+
+    static @Nonnull MockHttpServletResponse newLoginResponse(boolean newSession) {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        if (newSession) response.addHeader("Set-Cookie", "JSESSIONID=" + LONG_JSESSIONID + "; Path=/idp; Secure");
+        return response;
+    }
+
+    static @Nonnull ProfileRequestContext newProfileRequestContext(
+            @Nonnull String frontID,
+            @Nonnull MockHttpServletRequest request,
+            @Nonnull MockHttpServletResponse response) {
+        MockExternalContext externalContext = new MockExternalContext();
+        externalContext.setNativeRequest(request);
+        externalContext.setNativeResponse(response);
+        MockRequestContext webflowRequestContext = new MockRequestContext();
+        webflowRequestContext.setExternalContext(externalContext);
+
+        ProfileRequestContext prc = new ProfileRequestContext();
+        prc.ensureSubcontext(RelyingPartyContext.class).setRelyingPartyId(frontID);
+        prc.ensureSubcontext(SessionContext.class).setIdPSession(newIdPSession());
+        prc.ensureSubcontext(SpringRequestContext.class).setRequestContext(webflowRequestContext);
+        return prc;
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// Config lookups done on every login (isKnownFrontService) and every fabricate request (the others).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigBenchmark {
+
+    /// A small deployment and a large one.
+    @Param({"5", "200"})
+    public int fronts;
+
+    @Param({"10"})
+    public int backsPerFront;
+
+    private Config config;
+
+    private String frontID;
+
+    private String backID;
+
+    private String apiKey;
+
+    @Setup
+    public void setup() throws Exception {
+        config = BenchmarkSupport.newConfig(fronts, backsPerFront);
+        frontID = BenchmarkSupport.frontID(fronts / 2);
+        backID = BenchmarkSupport.backID(fronts / 2, backsPerFront - 1);
+        apiKey = BenchmarkSupport.apiKey(fronts / 2, 1);
+    }
+
+    @Benchmark
+    public boolean isKnownFrontService() {
+        return config.isKnownFrontService(frontID);
+    }
+
+    @Benchmark
+    public boolean isValidApiKey() {
+        return config.isValidApiKey(frontID, apiKey);
+    }
+
+    @Benchmark
+    public boolean isValidApiKeyWrong() {
+        return config.isValidApiKey(frontID, "wrong-api-key");
+    }
+
+    @Benchmark
+    public boolean isAllowedConnection() {
+        return config.isAllowedConnection(frontID, backID);
+    }
+
+    @Benchmark
+    public boolean isAllowedConnectionWrong() {
+        return config.isAllowedConnection(frontID, "https://unknown.example.com/shibboleth");
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.shared.security.DataSealer;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/// The part of andrvotr/fabricate before the nested request: parameter checks, API key, Host, and authority token.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpControllerBenchmark {
+
+    /// 0 disables the authority token cache, so every request pays for DataSealer.unwrap.
+    @Param({"0", "10000"})
+    public int authorityTokenCacheSize;
+
+    @Param({"V1", "V2"})
+    public AuthorityTokenGenerator.Format format;
+
+    private HttpController controller;
+
+    private String token;
+
+    private MockHttpServletRequest request;
+
+    private MockHttpServletResponse response;
+
+    @Setup
+    public void setup() throws Exception {
+        Config config = BenchmarkSupport.newConfig(50, 10);
+        DataSealer sealer = BenchmarkSupport.newDataSealer();
+        String frontID = BenchmarkSupport.frontID(25);
+
+        ProfileRequestContext prc = BenchmarkSupport.newProfileRequestContext(
+                frontID, BenchmarkSupport.newLoginRequest(false), BenchmarkSupport.newLoginResponse(false));
+        List<IdPAttributeValue> values = BenchmarkSupport.newAuthorityTokenGenerator(config, sealer, format).apply(prc);
+        token = ((StringAttributeValue) values.get(0)).getValue();
+
+        controller = BenchmarkSupport.newHttpController(config, sealer, authorityTokenCacheSize);
+
+        request = new MockHttpServletRequest("POST", "/idp/profile/andrvotr/fabricate");
+        request.setServerName(BenchmarkSupport.IDP_HOST);
+        request.addParameter("front_entity_id", frontID);
+        request.addParameter("api_key", BenchmarkSupport.apiKey(25, 0));
+        request.addParameter("andrvotr_authority_token", token);
+        request.addParameter(
+                "target_url",
+                "https://" + BenchmarkSupport.IDP_HOST + "/idp/profile/SAML2/Redirect/SSO?SAMLRequest=x");
+        // validateRequest only writes to the response if a check fails, and then the benchmark stops anyway.
+        response = new MockHttpServletResponse();
+    }
+
+    /// Returns Object because AuthorityToken is package-private, and JMH generates code in another package.
+    @Benchmark
+    public Object unwrapAuthorityToken() throws Exception {
+        return controller.unwrapAuthorityToken(token);
+    }
+
+    @Benchmark
+    public Object validateRequest() throws Exception {
+        Object result = controller.validateRequest(request, response);
+        if (result == null) {
+            throw new IllegalStateException("validateRequest failed: " + response.getContentAsString());
+        }
+        return result;
+    }
+}
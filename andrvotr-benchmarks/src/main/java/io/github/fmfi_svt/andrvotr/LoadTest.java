@@ -0,0 +1,218 @@
+package io.github.fmfi_svt.andrvotr;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nonnull;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+
+/// End-to-end load test of andrvotr/fabricate, without a real IdP.
+///
+/// Starts a LoadTestServer, then for each concurrency level runs that many client threads which send fabricate
+/// requests in a loop, and prints throughput, latency percentiles and errors. Everything runs on one machine over the
+/// loopback interface, so the numbers are only comparable with other runs on the same machine.
+///
+/// Usage: `java -cp benchmarks.jar io.github.fmfi_svt.andrvotr.LoadTest [--option=value ...]`, see Options.
+public final class LoadTest {
+    private LoadTest() {}
+
+    /// Command line options, all in the form `--name=value`.
+    private record Options(
+            @Nonnull HttpController.NestedRequestMode mode,
+            boolean async,
+            @Nonnull List<Integer> concurrency,
+            @Nonnull Duration warmup,
+            @Nonnull Duration duration,
+            @Nonnull Duration delay,
+            int responseSize) {
+
+        static @Nonnull Options parse(@Nonnull String[] args) {
+            Map<String, String> values = new HashMap<>();
+            values.put("mode", "HTTP");
+            values.put("async", "false");
+            values.put("concurrency", "1,4,16,64");
+            values.put("warmup", "PT10S");
+            values.put("duration", "PT30S");
+            values.put("delay", "PT0.005S");
+            values.put("responseSize", "8192");
+            for (String arg : args) {
+                String[] parts = arg.split("=", 2);
+                if (parts.length != 2 || !parts[0].startsWith("--") || !values.containsKey(parts[0].substring(2))) {
+                    throw new IllegalArgumentException("Unknown option " + arg + ", known options: " + values.keySet());
+                }
+                values.put(parts[0].substring(2), parts[1]);
+            }
+
+            List<Integer> concurrency = new ArrayList<>();
+            // -1 because of https://errorprone.info/bugpattern/StringSplitter
+            for (String level : values.get("concurrency").split(",", -1)) concurrency.add(Integer.parseInt(level));
+
+            return new Options(
+                    HttpController.NestedRequestMode.valueOf(values.get("mode")),
+                    Boolean.parseBoolean(values.get("async")),
+                    concurrency,
+                    Duration.parse(values.get("warmup")),
+                    Duration.parse(values.get("duration")),
+                    Duration.parse(values.get("delay")),
+                    Integer.parseInt(values.get("responseSize")));
+        }
+    }
+
+    /// What one client thread saw during one run.
+    private static final class WorkerResult {
+        long[] latencies = new long[1024];
+
+        int count;
+
+        final Map<String, Long> errors = new TreeMap<>();
+
+        void add(long latency) {
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = latency;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        int maxConcurrency = options.concurrency().stream().mapToInt(Integer::intValue).max().orElse(1);
+
+        System.out.printf(
+                "mode=%s async=%s delay=%s responseSize=%d warmup=%s duration=%s%n",
+                options.mode(),
+                options.async(),
+                options.delay(),
+                options.responseSize(),
+                options.warmup(),
+                options.duration());
+
+        // Each fabricate request in HTTP mode occupies two Jetty threads (the request and its nested request).
+        int jettyThreads = 2 * maxConcurrency + 50;
+        try (LoadTestServer server = new LoadTestServer(
+                        options.mode(), options.async(), options.delay(), options.responseSize(), jettyThreads);
+                LoopbackHttpClient client = LoopbackHttpClient.create(server.getPort(), maxConcurrency)) {
+            String targetUrl = "https://" + BenchmarkSupport.IDP_HOST + "/idp/profile/SAML2/Redirect/SSO?SAMLRequest="
+                    + URLEncoder.encode(
+                            StubSsoFlow.encodeAuthnRequest(LoadTestServer.BACK_ID), StandardCharsets.UTF_8);
+
+            System.out.printf(
+                    "%11s %12s %9s %9s %9s %9s %8s  %s%n",
+                    "concurrency", "requests/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors", "error details");
+            for (int concurrency : options.concurrency()) {
+                // A fresh token for every level, so that long runs don't hit its expiration.
+                List<NameValuePair> form = List.of(
+                        new BasicNameValuePair("front_entity_id", LoadTestServer.FRONT_ID),
+                        new BasicNameValuePair("api_key", LoadTestServer.API_KEY),
+                        new BasicNameValuePair("andrvotr_authority_token", server.newAuthorityToken()),
+                        new BasicNameValuePair("target_url", targetUrl));
+
+                run(client, form, concurrency, options.warmup());
+                List<WorkerResult> results = run(client, form, concurrency, options.duration());
+                printResults(concurrency, options.duration(), results);
+            }
+
+            System.out.println();
+            System.out.println("server side phases, all levels including warmup:");
+            for (Map.Entry<String, Timer> entry : server.getMetricRegistry().getTimers().entrySet()) {
+                Snapshot snapshot = entry.getValue().getSnapshot();
+                System.out.printf(
+                        Locale.ROOT,
+                        "  %-40s count=%d p50<=%.3fms p99<=%.3fms%n",
+                        entry.getKey(),
+                        entry.getValue().getCount(),
+                        snapshot.getMedian() / 1e6,
+                        snapshot.get99thPercentile() / 1e6);
+            }
+        }
+    }
+
+    private static @Nonnull List<WorkerResult> run(
+            @Nonnull LoopbackHttpClient client,
+            @Nonnull List<NameValuePair> form,
+            int concurrency,
+            @Nonnull Duration duration)
+            throws Exception {
+        String fabricateUrl = "https://" + BenchmarkSupport.IDP_HOST + "/idp/profile/andrvotr/fabricate";
+        long deadline = System.nanoTime() + duration.toNanos();
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<WorkerResult>> futures = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                futures.add(executor.submit(() -> {
+                    WorkerResult result = new WorkerResult();
+                    HttpPost post = new HttpPost(fabricateUrl);
+                    post.setEntity(new UrlEncodedFormEntity(form, StandardCharsets.UTF_8));
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        String error;
+                        try {
+                            error = client.execute(post, response -> {
+                                EntityUtils.consume(response.getEntity());
+                                return response.getCode() == 200 ? null : "HTTP " + response.getCode();
+                            });
+                        } catch (IOException e) {
+                            error = e.getClass().getSimpleName();
+                        }
+                        result.add(System.nanoTime() - start);
+                        if (error != null) result.errors.merge(error, 1L, Long::sum);
+                    }
+                    return result;
+                }));
+            }
+            List<WorkerResult> results = new ArrayList<>();
+            for (Future<WorkerResult> future : futures) results.add(future.get());
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void printResults(int concurrency, @Nonnull Duration duration, @Nonnull List<WorkerResult> results) {
+        int total = results.stream().mapToInt(result -> result.count).sum();
+        long[] latencies = new long[total];
+        int offset = 0;
+        Map<String, Long> errors = new TreeMap<>();
+        for (WorkerResult result : results) {
+            System.arraycopy(result.latencies, 0, latencies, offset, result.count);
+            offset += result.count;
+            result.errors.forEach((key, value) -> errors.merge(key, value, Long::sum));
+        }
+        Arrays.sort(latencies);
+        long errorCount = errors.values().stream().mapToLong(Long::longValue).sum();
+
+        System.out.printf(
+                Locale.ROOT,
+                "%11d %12.1f %9.3f %9.3f %9.3f %9.3f %7.2f%%  %s%n",
+                concurrency,
+                total / (duration.toNanos() / 1e9),
+                percentile(latencies, 0.5) / 1e6,
+                percentile(latencies, 0.99) / 1e6,
+                percentile(latencies, 0.999) / 1e6,
+                total == 0 ? 0 : latencies[total - 1] / 1e6,
+                total == 0 ? 0 : 100.0 * errorCount / total,
+                errors.isEmpty() ? "" : errors);
+    }
+
+    private static long percentile(@Nonnull long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,175 @@
+package io.github.fmfi_svt.andrvotr;
+
+import com.codahale.metrics.MetricRegistry;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import javax.annotation.Nonnull;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.shared.security.DataSealer;
+import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.springframework.web.context.support.StaticWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.webflow.context.ExternalContext;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.core.collection.MutableAttributeMap;
+import org.springframework.webflow.execution.FlowExecutionOutcome;
+import org.springframework.webflow.executor.FlowExecutionResult;
+import org.springframework.webflow.executor.FlowExecutor;
+
+/// An embedded Jetty with the real HttpController and FabricationWebflowListener, and StubSsoFlow instead of the
+/// rest of the IdP.
+///
+/// In HTTP mode, HttpController sends its nested requests to this same Jetty (through LoopbackHttpClient), and they are
+/// handled by StubSsoFlow. In IN_PROCESS mode, InProcessNestedRequestSender finds a stub "flowExecutor" bean which runs
+/// StubSsoFlow directly.
+final class LoadTestServer implements AutoCloseable {
+
+    static final String FRONT_ID = BenchmarkSupport.frontID(0);
+
+    static final String BACK_ID = BenchmarkSupport.backID(0, 0);
+
+    static final String API_KEY = BenchmarkSupport.apiKey(0, 0);
+
+    private final @Nonnull MetricRegistry metricRegistry = new MetricRegistry();
+
+    private final @Nonnull AuthorityTokenGenerator generator;
+
+    private final @Nonnull HttpController controller;
+
+    private final @Nonnull StubSsoFlow ssoFlow;
+
+    private final @Nonnull StaticWebApplicationContext webApplicationContext = new StaticWebApplicationContext();
+
+    private final @Nonnull LoopbackHttpClient nestedHttpClient;
+
+    private final @Nonnull Server server;
+
+    private final int port;
+
+    LoadTestServer(
+            @Nonnull HttpController.NestedRequestMode mode,
+            boolean async,
+            @Nonnull Duration delay,
+            int responseSize,
+            int maxThreads)
+            throws Exception {
+        Config config = BenchmarkSupport.newConfig(1, 1);
+        DataSealer sealer = BenchmarkSupport.newDataSealer();
+        FabricationTokens fabricationTokens = BenchmarkSupport.newFabricationTokens(sealer);
+        FabricationMetrics metrics = BenchmarkSupport.newMetrics(metricRegistry);
+        generator = BenchmarkSupport.newAuthorityTokenGenerator(config, sealer, AuthorityTokenGenerator.Format.V1);
+
+        FabricationWebflowListener listener = new FabricationWebflowListener();
+        listener.setConfig(config);
+        listener.setFabricationTokens(fabricationTokens);
+        listener.setMetrics(metrics);
+        listener.initialize();
+        ssoFlow = new StubSsoFlow(listener, delay, responseSize);
+
+        webApplicationContext.getBeanFactory().registerSingleton("flowExecutor", new StubFlowExecutor());
+        webApplicationContext.refresh();
+
+        QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads);
+        threadPool.setName("loadtest-jetty");
+        server = new Server(threadPool);
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath("/idp");
+        ServletHolder holder = new ServletHolder(new IdPServlet());
+        holder.setAsyncSupported(true);
+        context.addServlet(holder, "/profile/*");
+        server.setHandler(context);
+        server.start();
+        port = connector.getLocalPort();
+
+        // Nested HTTP requests come on top of the load generator's requests, so they may need as many connections.
+        nestedHttpClient = LoopbackHttpClient.create(port, maxThreads);
+        controller = new HttpController();
+        controller.setHttpClient(nestedHttpClient);
+        controller.setLoginHttpClient(nestedHttpClient);
+        controller.setConfig(config);
+        controller.setDataSealer(sealer);
+        controller.setFabricationTokens(fabricationTokens);
+        controller.setMetrics(metrics);
+        controller.setFabricationQuotas(BenchmarkSupport.newFabricationQuotas(config));
+        controller.setAuditLog(BenchmarkSupport.newAuditLog(metrics));
+        controller.setEndedSessions(BenchmarkSupport.newEndedSessions());
+        controller.setSessionLivenessCheck(BenchmarkSupport.newSessionLivenessCheck());
+        controller.setIdpEntityID(BenchmarkSupport.IDP_ENTITY_ID);
+        controller.setNestedRequestMode(mode);
+        controller.setIdpSessionStorageService(BenchmarkSupport.newIdpSessionStorageService());
+        controller.setAuthorityTokenCacheSize(10000);
+        controller.setAsyncEnabled(async);
+        controller.initialize();
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    @Nonnull MetricRegistry getMetricRegistry() {
+        return metricRegistry;
+    }
+
+    /// Creates an authority token for FRONT_ID, like the IdP does when a user signs in to the front service.
+    @Nonnull String newAuthorityToken() {
+        List<IdPAttributeValue> values = generator.apply(BenchmarkSupport.newProfileRequestContext(
+                FRONT_ID, BenchmarkSupport.newLoginRequest(false), BenchmarkSupport.newLoginResponse(false)));
+        return ((StringAttributeValue) values.get(0)).getValue();
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.stop();
+        controller.destroy();
+        nestedHttpClient.close();
+        webApplicationContext.close();
+    }
+
+    private final class IdPServlet extends HttpServlet {
+        @Override
+        protected void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            // Where DispatcherServlet would put it. InProcessNestedRequestSender looks for "flowExecutor" here.
+            request.setAttribute(DispatcherServlet.WEB_APPLICATION_CONTEXT_ATTRIBUTE, webApplicationContext);
+
+            String path = request.getPathInfo();
+            if ("/andrvotr/fabricate".equals(path) && "POST".equals(request.getMethod())) {
+                controller.fabricate(request, response);
+            } else if ("/SAML2/Redirect/SSO".equals(path) && "GET".equals(request.getMethod())) {
+                ssoFlow.run(new ServletExternalContext(getServletContext(), request, response));
+            } else {
+                response.sendError(404);
+            }
+        }
+    }
+
+    private final class StubFlowExecutor implements FlowExecutor {
+        @Override
+        public FlowExecutionResult launchExecution(
+                String flowId, MutableAttributeMap<?> input, ExternalContext context) {
+            try {
+                ssoFlow.run(context);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return FlowExecutionResult.createEndedResult(flowId, new FlowExecutionOutcome(Constants.STATE_END, null));
+        }
+
+        @Override
+        public FlowExecutionResult resumeExecution(String flowExecutionKey, ExternalContext context) {
+            throw new UnsupportedOperationException("StubSsoFlow never pauses");
+        }
+    }
+}
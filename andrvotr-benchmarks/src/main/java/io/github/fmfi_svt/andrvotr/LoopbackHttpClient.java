@@ -0,0 +1,60 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.io.IOException;
+import javax.annotation.Nonnull;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+
+/// An HttpClient which sends every request to the load test's Jetty over plain HTTP, whatever host its URL says.
+///
+/// HttpController only accepts requests for its own host name and only sends nested requests to
+/// "https://<that host>/...". With this client, both the load generator and HttpController can use such URLs without
+/// DNS entries or TLS certificates. The Host header still comes from the URL, so Jetty sees the expected server name.
+final class LoopbackHttpClient extends CloseableHttpClient {
+
+    private final @Nonnull CloseableHttpClient delegate;
+
+    private final @Nonnull HttpHost target;
+
+    private LoopbackHttpClient(@Nonnull CloseableHttpClient delegate, @Nonnull HttpHost target) {
+        this.delegate = delegate;
+        this.target = target;
+    }
+
+    static @Nonnull LoopbackHttpClient create(int port, int maxConnections) {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .build();
+        CloseableHttpClient delegate = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .disableCookieManagement()
+                .disableRedirectHandling()
+                .build();
+        return new LoopbackHttpClient(delegate, new HttpHost("http", "127.0.0.1", port));
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    protected CloseableHttpResponse doExecute(HttpHost ignored, ClassicHttpRequest request, HttpContext context)
+            throws IOException {
+        return delegate.execute(target, request, context);
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    @Override
+    public void close(CloseMode closeMode) {
+        delegate.close(closeMode);
+    }
+}
@@ -0,0 +1,140 @@
+package io.github.fmfi_svt.andrvotr;
+
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.annotation.Nonnull;
+import net.shibboleth.profile.context.RelyingPartyContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.webflow.context.ExternalContext;
+import org.springframework.webflow.engine.ActionState;
+import org.springframework.webflow.engine.Flow;
+import org.springframework.webflow.engine.State;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.test.MockRequestContext;
+
+/// Stand-in for the "SAML2/Redirect/SSO" flow of a real IdP.
+///
+/// It calls FabricationWebflowListener exactly like Spring Web Flow would for a successful login: requestSubmitted,
+/// the "DecodeMessage" state with a "proceed" event, a few other states, and "HandleOutboundMessage", which writes an
+/// HTML page with a SAMLResponse form. The back service's entity ID is taken from the Issuer of the SAMLRequest, like
+/// the real flow does. Everything else a real IdP would do (checking the IdP session, building and signing the
+/// assertion) is replaced by a configurable delay.
+final class StubSsoFlow {
+
+    private static final String FLOW_ID = "SAML2/Redirect/SSO";
+
+    /// Names don't matter to the listener, but the trace looks more realistic with several states.
+    private static final List<String> MIDDLE_STATES =
+            List.of("PostDecodePopulateAuditContext", "CheckInboundSecurity", "OutboundContextsAndSecurityParameters");
+
+    private static final Pattern ISSUER = Pattern.compile("<(?:saml2?:)?Issuer[^>]*>([^<]+)</(?:saml2?:)?Issuer>");
+
+    private final @Nonnull FabricationWebflowListener listener;
+
+    private final @Nonnull Duration delay;
+
+    private final @Nonnull String samlResponse;
+
+    StubSsoFlow(@Nonnull FabricationWebflowListener listener, @Nonnull Duration delay, int responseSize) {
+        this.listener = listener;
+        this.delay = delay;
+        samlResponse = "A".repeat(responseSize);
+    }
+
+    /// Builds a minimal deflated and base64-encoded AuthnRequest, as sent with the HTTP-Redirect binding.
+    static @Nonnull String encodeAuthnRequest(@Nonnull String issuer) {
+        String xml = "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+                + " xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_loadtest\" Version=\"2.0\""
+                + " IssueInstant=\"2024-01-01T00:00:00Z\"><saml:Issuer>" + issuer + "</saml:Issuer>"
+                + "</samlp:AuthnRequest>";
+        Deflater deflater = new Deflater(Deflater.DEFLATED, true);
+        deflater.setInput(xml.getBytes(StandardCharsets.UTF_8));
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) output.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        return Base64.getEncoder().encodeToString(output.toByteArray());
+    }
+
+    static @Nonnull String decodeIssuer(@Nonnull String samlRequest) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(Base64.getDecoder().decode(samlRequest));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!inflater.finished()) {
+            int length = inflater.inflate(buffer);
+            if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+            output.write(buffer, 0, length);
+        }
+        inflater.end();
+        Matcher matcher = ISSUER.matcher(output.toString(StandardCharsets.UTF_8));
+        if (!matcher.find()) throw new DataFormatException("No Issuer in SAMLRequest");
+        return matcher.group(1);
+    }
+
+    void run(@Nonnull ExternalContext externalContext) throws IOException {
+        Flow flow = new Flow(FLOW_ID);
+        MockRequestContext context = new MockRequestContext(flow);
+        context.setExternalContext(externalContext);
+
+        listener.requestSubmitted(context);
+
+        String backID;
+        try {
+            backID = decodeIssuer(externalContext.getRequestParameterMap().getRequired("SAMLRequest"));
+        } catch (DataFormatException | IllegalArgumentException e) {
+            // The real flow would show an error page. The missing trace entries make HttpController reject it.
+            ((HttpServletResponse) externalContext.getNativeResponse()).sendError(400);
+            return;
+        }
+
+        ProfileRequestContext prc = new ProfileRequestContext();
+        prc.ensureSubcontext(RelyingPartyContext.class).setRelyingPartyId(backID);
+        context.getConversationScope().put(ProfileRequestContext.BINDING_KEY, prc);
+
+        State previous = enter(context, null, new ActionState(flow, Constants.STATE_DECODE_MESSAGE));
+        listener.eventSignaled(context, new Event(this, Constants.EVENT_PROCEED));
+
+        for (String id : MIDDLE_STATES) previous = enter(context, previous, new ActionState(flow, id));
+
+        if (!delay.isZero()) {
+            try {
+                Thread.sleep(delay.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+
+        previous = enter(context, previous, new ActionState(flow, Constants.STATE_HANDLE_OUTBOUND_MESSAGE));
+        HttpServletResponse response = (HttpServletResponse) externalContext.getNativeResponse();
+        response.setContentType("text/html;charset=utf-8");
+        OutputStream stream = response.getOutputStream();
+        stream.write(("<!DOCTYPE html><html><body onload=\"document.forms[0].submit()\">"
+                        + "<form method=\"post\" action=\"https://back.example.com/Shibboleth.sso/SAML2/POST\">"
+                        + "<input type=\"hidden\" name=\"SAMLResponse\" value=\"" + samlResponse + "\"/>"
+                        + "</form></body></html>")
+                .getBytes(StandardCharsets.UTF_8));
+        stream.close();
+
+        enter(context, previous, new ActionState(flow, Constants.STATE_END));
+    }
+
+    private @Nonnull State enter(@Nonnull MockRequestContext context, State previous, @Nonnull State state) {
+        context.getMockFlowExecutionContext().getMockActiveSession().setState(state);
+        listener.stateEntered(context, previous, state);
+        return state;
+    }
+}
@@ -0,0 +1,336 @@
+package io.github.fmfi_svt.andrvotr.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/// Signs in to back services on behalf of the users of a front service, following the login procedure in README.md,
+/// and caches the resulting sessions.
+///
+/// A front service should create one instance and share it. All requests go through one java.net.http.HttpClient,
+/// which keeps connections to the IdP and the back services open between logins. Every login gets its own CookieJar.
+///
+/// getSession() returns the cached session of a (user, back service login URL) pair until it expires, and logs in
+/// otherwise. If several threads ask for the same pair at the same time, only one of them logs in and the others wait
+/// for its result. Failed logins are not cached.
+public final class AndrvotrClient {
+
+    private record SessionKey(@Nonnull String userKey, @Nonnull URI loginUrl) {}
+
+    /// Login pages and SAML messages are small. This limit only exists to avoid buffering something unreasonable.
+    private static final int MAX_BODY_SIZE = 4 * 1024 * 1024;
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(AndrvotrClient.class);
+
+    private final @Nonnull HttpClient httpClient;
+
+    private final @Nonnull String idpProfilePrefix;
+
+    private final @Nonnull String frontEntityID;
+
+    private final @Nonnull String apiKey;
+
+    private final @Nonnull Duration sessionLifetime;
+
+    private final int maxCachedSessions;
+
+    private final int maxRequests;
+
+    private final @Nonnull Duration requestTimeout;
+
+    private final @Nonnull Map<SessionKey, CompletableFuture<BackServiceSession>> sessions = new ConcurrentHashMap<>();
+
+    private AndrvotrClient(@Nonnull Builder builder) {
+        httpClient = builder.httpClient != null
+                ? builder.httpClient
+                : HttpClient.newBuilder()
+                        .followRedirects(HttpClient.Redirect.NEVER)
+                        .connectTimeout(builder.requestTimeout)
+                        .build();
+        if (httpClient.followRedirects() != HttpClient.Redirect.NEVER) {
+            throw new IllegalArgumentException("HttpClient must not follow redirects");
+        }
+        if (httpClient.cookieHandler().isPresent()) {
+            throw new IllegalArgumentException("HttpClient must not have a CookieHandler");
+        }
+        idpProfilePrefix = builder.idpUrl + "/idp/profile/";
+        frontEntityID = builder.frontEntityID;
+        apiKey = builder.apiKey;
+        sessionLifetime = builder.sessionLifetime;
+        maxCachedSessions = builder.maxCachedSessions;
+        maxRequests = builder.maxRequests;
+        requestTimeout = builder.requestTimeout;
+    }
+
+    /// `idpUrl` is the scheme and host of the IdP, e.g. "https://idp.example.com". `frontEntityID` and `apiKey` must
+    /// match andrvotr.apiKeys in the IdP configuration.
+    public static @Nonnull Builder builder(
+            @Nonnull String idpUrl, @Nonnull String frontEntityID, @Nonnull String apiKey) {
+        return new Builder(idpUrl, frontEntityID, apiKey);
+    }
+
+    public static final class Builder {
+        private final @Nonnull String idpUrl;
+
+        private final @Nonnull String frontEntityID;
+
+        private final @Nonnull String apiKey;
+
+        private @Nullable HttpClient httpClient;
+
+        private @Nonnull Duration sessionLifetime = Duration.ofMinutes(30);
+
+        private int maxCachedSessions = 10000;
+
+        private int maxRequests = 20;
+
+        private @Nonnull Duration requestTimeout = Duration.ofSeconds(30);
+
+        private Builder(@Nonnull String idpUrl, @Nonnull String frontEntityID, @Nonnull String apiKey) {
+            if (!idpUrl.startsWith("https://")) throw new IllegalArgumentException("idpUrl must start with https://");
+            this.idpUrl = idpUrl.endsWith("/") ? idpUrl.substring(0, idpUrl.length() - 1) : idpUrl;
+            this.frontEntityID = frontEntityID;
+            this.apiKey = apiKey;
+        }
+
+        /// Default: a new HttpClient which does not follow redirects. A custom one must not follow redirects either,
+        /// and must not have a CookieHandler, because it would mix up the cookies of different users.
+        public @Nonnull Builder httpClient(@Nonnull HttpClient client) {
+            httpClient = client;
+            return this;
+        }
+
+        /// How long a session is cached, unless all its cookies expire earlier. Should be shorter than the back
+        /// service's own session timeout. Default: 30 minutes.
+        public @Nonnull Builder sessionLifetime(@Nonnull Duration lifetime) {
+            if (lifetime.isNegative()) throw new IllegalArgumentException("sessionLifetime cannot be negative");
+            sessionLifetime = lifetime;
+            return this;
+        }
+
+        /// Default: 10000. 0 disables the cache, but concurrent logins of the same pair are still merged.
+        public @Nonnull Builder maxCachedSessions(int max) {
+            if (max < 0) throw new IllegalArgumentException("maxCachedSessions cannot be negative");
+            maxCachedSessions = max;
+            return this;
+        }
+
+        /// The maximum number of requests in one login procedure. Default: 20.
+        public @Nonnull Builder maxRequests(int max) {
+            if (max <= 0) throw new IllegalArgumentException("maxRequests must be positive");
+            maxRequests = max;
+            return this;
+        }
+
+        /// Timeout of each request. Default: 30 seconds.
+        public @Nonnull Builder requestTimeout(@Nonnull Duration timeout) {
+            if (timeout.isNegative() || timeout.isZero()) {
+                throw new IllegalArgumentException("requestTimeout must be positive");
+            }
+            requestTimeout = timeout;
+            return this;
+        }
+
+        public @Nonnull AndrvotrClient build() {
+            return new AndrvotrClient(this);
+        }
+    }
+
+    /// Returns a session of the user in the back service, from the cache or by logging in.
+    ///
+    /// `userKey` identifies the user in the front service (e.g. their user name). `loginUrl` is the back service URL
+    /// which starts its login process. `authorityToken` is the user's Andrvotr Authority Token from the front
+    /// service's SAML attributes, and is only used if a new login is needed.
+    ///
+    /// Throws AndrvotrClientException if the login procedure does not end with an HTTP 2xx response.
+    public @Nonnull BackServiceSession getSession(
+            @Nonnull String userKey, @Nonnull URI loginUrl, @Nonnull String authorityToken)
+            throws IOException, InterruptedException {
+        SessionKey key = new SessionKey(userKey, loginUrl);
+        while (true) {
+            CompletableFuture<BackServiceSession> existing = sessions.get(key);
+            if (existing != null) {
+                if (!existing.isDone()) return await(existing);
+                BackServiceSession session = existing.isCompletedExceptionally() ? null : existing.join();
+                if (session != null && !session.isExpired()) return session;
+                sessions.remove(key, existing);
+                continue;
+            }
+
+            CompletableFuture<BackServiceSession> future = new CompletableFuture<>();
+            if (sessions.putIfAbsent(key, future) != null) continue;
+
+            try {
+                BackServiceSession session = login(loginUrl, authorityToken);
+                future.complete(session);
+                if (maxCachedSessions == 0) {
+                    sessions.remove(key, future);
+                } else if (sessions.size() > maxCachedSessions) {
+                    evict();
+                }
+                return session;
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                sessions.remove(key, future);
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    /// Forgets the cached session, e.g. when the back service says it has ended.
+    public void invalidate(@Nonnull String userKey, @Nonnull URI loginUrl) {
+        sessions.remove(new SessionKey(userKey, loginUrl));
+    }
+
+    private static @Nonnull BackServiceSession await(@Nonnull CompletableFuture<BackServiceSession> future)
+            throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) throw ioException;
+            if (cause instanceof RuntimeException runtimeException) throw runtimeException;
+            // Another thread's login was interrupted. That doesn't mean this thread was.
+            throw new AndrvotrClientException("Concurrent login failed: " + cause);
+        }
+    }
+
+    /// Removes expired sessions. If the cache is still too large, removes arbitrary finished ones.
+    private void evict() {
+        sessions.values().removeIf(future -> future.isDone()
+                && (future.isCompletedExceptionally() || future.join().isExpired()));
+        for (Map.Entry<SessionKey, CompletableFuture<BackServiceSession>> entry : sessions.entrySet()) {
+            if (sessions.size() <= maxCachedSessions) break;
+            if (entry.getValue().isDone()) sessions.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private @Nonnull BackServiceSession login(@Nonnull URI loginUrl, @Nonnull String authorityToken)
+            throws IOException, InterruptedException {
+        Instant expiration = Instant.now().plus(sessionLifetime);
+        CookieJar cookies = new CookieJar();
+        URI url = loginUrl;
+        Map<String, String> form = null;
+
+        for (int i = 0; i < maxRequests; i++) {
+            // Step 5: Instead of sending the user's browser to the IdP, ask the IdP to fabricate its response.
+            boolean fabricate = form == null && url.toString().startsWith(idpProfilePrefix);
+            if (fabricate) {
+                if (!url.toString().startsWith(idpProfilePrefix + "SAML2/Redirect/SSO?")) {
+                    throw new AndrvotrClientException("Unexpected IdP URL: " + url);
+                }
+                form = new LinkedHashMap<>();
+                form.put("front_entity_id", frontEntityID);
+                form.put("api_key", apiKey);
+                form.put("andrvotr_authority_token", authorityToken);
+                form.put("target_url", url.toString());
+                url = URI.create(idpProfilePrefix + "andrvotr/fabricate");
+            }
+
+            log.debug("andrvotr client: {} {}", form != null ? "POST" : "GET", url);
+            HttpResponse<InputStream> response =
+                    httpClient.send(newRequest(url, form, cookies), HttpResponse.BodyHandlers.ofInputStream());
+            cookies.addResponseCookies(url, response.headers());
+            byte[] body = readBody(response);
+            int status = response.statusCode();
+
+            // Step 4: Decide what the next request is.
+            String location = response.headers().firstValue("Location").orElse(null);
+            if (status >= 300 && status <= 399 && location != null) {
+                url = url.resolve(location);
+                form = null;
+                continue;
+            }
+
+            if (status == 200) {
+                PseudoRedirectForm next = PseudoRedirectForm.parse(newReader(response, body));
+                if (next != null) {
+                    url = url.resolve(next.action());
+                    form = next.fields();
+                    continue;
+                }
+            }
+
+            if (status < 200 || status > 299) {
+                String message = "Login ended with HTTP " + status + " from " + url;
+                String errorCode = null;
+                // The IdP's andrvotr/fabricate errors are short plain text messages.
+                if (fabricate) {
+                    message += ": " + new String(body, 0, Math.min(body.length, 500), StandardCharsets.UTF_8);
+                    errorCode = response.headers().firstValue("Andrvotr-Error").orElse(null);
+                }
+                throw new AndrvotrClientException(message, errorCode);
+            }
+            return new BackServiceSession(cookies, url, status, body, expiration);
+        }
+
+        throw new AndrvotrClientException("Login did not finish in " + maxRequests + " requests");
+    }
+
+    private @Nonnull HttpRequest newRequest(
+            @Nonnull URI url, @Nullable Map<String, String> form, @Nonnull CookieJar cookies) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(url).timeout(requestTimeout);
+        String cookieHeader = cookies.getCookieHeader(url);
+        if (cookieHeader != null) request.header("Cookie", cookieHeader);
+        if (form == null) return request.GET().build();
+
+        StringBuilder body = new StringBuilder();
+        for (Map.Entry<String, String> field : form.entrySet()) {
+            if (body.length() != 0) body.append('&');
+            body.append(URLEncoder.encode(field.getKey(), StandardCharsets.UTF_8));
+            body.append('=');
+            body.append(URLEncoder.encode(field.getValue(), StandardCharsets.UTF_8));
+        }
+        return request.header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+    }
+
+    private static @Nonnull byte[] readBody(@Nonnull HttpResponse<InputStream> response) throws IOException {
+        try (InputStream stream = response.body()) {
+            byte[] body = stream.readNBytes(MAX_BODY_SIZE + 1);
+            if (body.length > MAX_BODY_SIZE) {
+                throw new AndrvotrClientException("Response is larger than " + MAX_BODY_SIZE + " bytes");
+            }
+            return body;
+        }
+    }
+
+    private static @Nonnull Reader newReader(@Nonnull HttpResponse<?> response, @Nonnull byte[] body) {
+        Charset charset = StandardCharsets.UTF_8;
+        String contentType = response.headers().firstValue("Content-Type").orElse("");
+        int index = contentType.toLowerCase(Locale.ROOT).indexOf("charset=");
+        if (index != -1) {
+            String name = contentType.substring(index + "charset=".length()).split(";", -1)[0].trim();
+            try {
+                charset = Charset.forName(name.replace("\"", ""));
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                // Keep UTF-8.
+            }
+        }
+        return new InputStreamReader(new ByteArrayInputStream(body), charset);
+    }
+}
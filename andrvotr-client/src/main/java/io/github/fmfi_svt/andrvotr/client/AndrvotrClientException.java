@@ -0,0 +1,30 @@
+package io.github.fmfi_svt.andrvotr.client;
+
+import java.io.IOException;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// The login procedure did not end with a successful response from the back service.
+///
+/// If the IdP rejected the fabrication with a machine-readable reason (the Andrvotr-Error response header), it is in
+/// getErrorCode(). "session_ended" and "session_expired" mean that the user's IdP session is gone, so the authority
+/// token is useless and the user must sign in to the front service again.
+public final class AndrvotrClientException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final @Nullable String errorCode;
+
+    public AndrvotrClientException(@Nonnull String message) {
+        this(message, null);
+    }
+
+    public AndrvotrClientException(@Nonnull String message, @Nullable String errorCode) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+
+    public @Nullable String getErrorCode() {
+        return errorCode;
+    }
+}
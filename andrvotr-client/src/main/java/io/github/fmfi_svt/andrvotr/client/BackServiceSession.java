@@ -0,0 +1,23 @@
+package io.github.fmfi_svt.andrvotr.client;
+
+import java.net.URI;
+import java.time.Instant;
+import javax.annotation.Nonnull;
+
+/// The result of a successful login to a back service.
+///
+/// `cookies` contains the back service's session cookies. Use CookieJar.getCookieHeader() for further requests to the
+/// back service, and CookieJar.addResponseCookies() to keep it up to date. `finalUri`, `statusCode` and `body` describe
+/// the last response of the login procedure, e.g. to check that it really is the back service's home page.
+public record BackServiceSession(
+        @Nonnull CookieJar cookies,
+        @Nonnull URI finalUri,
+        int statusCode,
+        @Nonnull byte[] body,
+        @Nonnull Instant expiration) {
+
+    /// True if the session lifetime has passed, or if all cookies have expired.
+    public boolean isExpired() {
+        return !Instant.now().isBefore(expiration) || cookies.isEmpty();
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.fmfi_svt.andrvotr.client;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// Cookies of one login, i.e. of one user in one back service (and the IdP).
+///
+/// java.net.http.HttpClient can only have one CookieHandler, which would be shared by all users, so AndrvotrClient
+/// keeps cookies here and sends them manually. This is a simplified RFC 6265 cookie store: it handles Domain, Path,
+/// Secure, Max-Age and Expires, which is all the login procedure needs.
+///
+/// Safe to use from multiple threads.
+public final class CookieJar {
+
+    private record Entry(
+            @Nonnull String name,
+            @Nonnull String value,
+            @Nonnull String domain,
+            boolean hostOnly,
+            @Nonnull String path,
+            boolean secure,
+            @Nullable Instant expiration) {
+
+        boolean isExpired(@Nonnull Instant now) {
+            return expiration != null && !now.isBefore(expiration);
+        }
+
+        boolean matches(@Nonnull URI uri) {
+            String host = uri.getHost().toLowerCase(Locale.ROOT);
+            if (hostOnly ? !host.equals(domain) : !domainMatches(host, domain)) return false;
+            if (secure && !"https".equalsIgnoreCase(uri.getScheme())) return false;
+            return pathMatches(requestPath(uri), path);
+        }
+    }
+
+    private final @Nonnull List<Entry> entries = new ArrayList<>();
+
+    /// Stores the cookies from the Set-Cookie headers of a response to `uri`. Invalid cookies are ignored.
+    public synchronized void addResponseCookies(@Nonnull URI uri, @Nonnull HttpHeaders headers) {
+        Instant now = Instant.now();
+        String host = uri.getHost().toLowerCase(Locale.ROOT);
+        for (String header : headers.allValues("Set-Cookie")) {
+            List<HttpCookie> cookies;
+            try {
+                cookies = HttpCookie.parse(header);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            for (HttpCookie cookie : cookies) {
+                String domain = cookie.getDomain();
+                boolean hostOnly = domain == null || domain.isEmpty();
+                if (hostOnly) {
+                    domain = host;
+                } else {
+                    domain = domain.toLowerCase(Locale.ROOT);
+                    if (domain.startsWith(".")) domain = domain.substring(1);
+                    if (!domainMatches(host, domain)) continue;
+                }
+
+                String path = cookie.getPath();
+                if (path == null || !path.startsWith("/")) path = defaultPath(requestPath(uri));
+
+                // HttpCookie converts Expires to Max-Age. -1 means a session cookie.
+                long maxAge = cookie.getMaxAge();
+                Instant expiration = maxAge < 0 ? null : now.plusSeconds(maxAge);
+
+                Entry entry = new Entry(
+                        cookie.getName(),
+                        cookie.getValue(),
+                        domain,
+                        hostOnly,
+                        path,
+                        cookie.getSecure(),
+                        expiration);
+                entries.removeIf(old -> old.name().equals(entry.name())
+                        && old.domain().equals(entry.domain())
+                        && old.path().equals(entry.path()));
+                if (!entry.isExpired(now)) entries.add(entry);
+            }
+        }
+    }
+
+    /// Returns the value of the Cookie header for a request to `uri`, or null if no cookies match.
+    public synchronized @Nullable String getCookieHeader(@Nonnull URI uri) {
+        Instant now = Instant.now();
+        entries.removeIf(entry -> entry.isExpired(now));
+
+        StringBuilder header = new StringBuilder();
+        // Longer paths first, as recommended by RFC 6265.
+        entries.stream()
+                .filter(entry -> entry.matches(uri))
+                .sorted((a, b) -> Integer.compare(b.path().length(), a.path().length()))
+                .forEach(entry -> {
+                    if (header.length() != 0) header.append("; ");
+                    header.append(entry.name()).append('=').append(entry.value());
+                });
+        return header.length() == 0 ? null : header.toString();
+    }
+
+    /// True if there are no unexpired cookies.
+    public synchronized boolean isEmpty() {
+        Instant now = Instant.now();
+        return entries.stream().allMatch(entry -> entry.isExpired(now));
+    }
+
+    private static boolean domainMatches(@Nonnull String host, @Nonnull String domain) {
+        return host.equals(domain) || host.endsWith("." + domain);
+    }
+
+    private static boolean pathMatches(@Nonnull String requestPath, @Nonnull String cookiePath) {
+        if (requestPath.equals(cookiePath)) return true;
+        if (!requestPath.startsWith(cookiePath)) return false;
+        return cookiePath.endsWith("/") || requestPath.charAt(cookiePath.length()) == '/';
+    }
+
+    private static @Nonnull String requestPath(@Nonnull URI uri) {
+        String path = uri.getRawPath();
+        return path == null || path.isEmpty() ? "/" : path;
+    }
+
+    private static @Nonnull String defaultPath(@Nonnull String requestPath) {
+        int slash = requestPath.lastIndexOf('/');
+        return slash <= 0 ? "/" : requestPath.substring(0, slash);
+    }
+}
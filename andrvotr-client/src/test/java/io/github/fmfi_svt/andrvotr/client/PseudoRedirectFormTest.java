@@ -0,0 +1,58 @@
+package io.github.fmfi_svt.andrvotr.client;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.testng.annotations.Test;
+
+/// Runs the pages in resources/pseudo-redirect-forms. andrvotr-impl has the same test for its copy of
+/// PseudoRedirectForm, so both copies must give the same results.
+public class PseudoRedirectFormTest {
+
+    private static @Nonnull String format(@Nullable PseudoRedirectForm form) {
+        if (form == null) return "none\n";
+        StringBuilder result = new StringBuilder("action " + form.action() + "\n");
+        for (Map.Entry<String, String> field : form.fields().entrySet()) {
+            result.append("field ").append(field.getKey()).append('=').append(field.getValue()).append('\n');
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void testSharedPages() throws Exception {
+        Path directory = Path.of(PseudoRedirectFormTest.class.getResource("/pseudo-redirect-forms").toURI());
+        List<Path> pages;
+        try (Stream<Path> files = Files.list(directory)) {
+            pages = files.filter(file -> file.toString().endsWith(".html")).sorted().collect(Collectors.toList());
+        }
+        assertFalse(pages.isEmpty());
+
+        for (Path page : pages) {
+            Path expected = Path.of(page.toString().replaceAll("\\.html$", ".txt"));
+            try (Reader reader = Files.newBufferedReader(page, StandardCharsets.UTF_8)) {
+                assertEquals(
+                        format(PseudoRedirectForm.parse(reader)),
+                        Files.readString(expected, StandardCharsets.UTF_8),
+                        page.getFileName().toString());
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeCharacterReferences() {
+        assertEquals(PseudoRedirectForm.decodeCharacterReferences("a&amp;b"), "a&b");
+        assertEquals(PseudoRedirectForm.decodeCharacterReferences("&#x1F600;"), "😀");
+        assertEquals(PseudoRedirectForm.decodeCharacterReferences("&#1114112;"), "&#1114112;");
+        assertEquals(PseudoRedirectForm.decodeCharacterReferences("a & b"), "a & b");
+    }
+}
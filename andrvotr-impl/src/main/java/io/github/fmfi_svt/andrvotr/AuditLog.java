@@ -0,0 +1,264 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import org.slf4j.Logger;
+
+/// Structured audit log of authority token issuance and fabrications, written as JSON Lines.
+///
+/// Request threads only create an AuditEvent and put it in an AuditRingBuffer, which never blocks. A background thread
+/// formats the events and writes them to `file`. When the file grows over maxFileSize, it is renamed to "file.1" (and
+/// "file.1" to "file.2", etc.), keeping at most maxFiles old files. If the writer can't keep up and the buffer is full,
+/// new events are dropped and counted in the "andrvotr.audit.dropped" metric.
+///
+/// Each line has the same fields, null if unknown: "ts" (ISO-8601), "event" ("issue", "reuse" or "fabricate"),
+/// "front", "back", "principal", "status" (HTTP status of the fabrication), "error", "trace" (the last state of the
+/// nested flow) and "latency_us" (of the whole fabricate request).
+///
+/// If `file` is empty, the audit log is disabled and recording does nothing.
+public final class AuditLog extends AbstractInitializableComponent {
+
+    private record AuditEvent(
+            long timestampMillis,
+            @Nonnull String event,
+            @Nullable String front,
+            @Nullable String back,
+            @Nullable String principal,
+            int status,
+            @Nullable String error,
+            @Nullable String trace,
+            long latencyNanos) {}
+
+    /// How long the writer sleeps when the buffer is empty. Events wait at most this long before they are written.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /// Dropped events are logged at most this often.
+    private static final long DROPPED_LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(AuditLog.class);
+
+    private @Nullable Path file;
+
+    private long maxFileSize = 100 * 1024 * 1024;
+
+    private int maxFiles = 10;
+
+    private int bufferSize = 8192;
+
+    private FabricationMetrics metrics;
+
+    private @Nullable AuditRingBuffer<AuditEvent> buffer;
+
+    private final @Nonnull LongAdder dropped = new LongAdder();
+
+    private @Nullable Thread writerThread;
+
+    private volatile boolean running;
+
+    public void setFile(@Nullable String path) {
+        checkSetterPreconditions();
+        file = path == null || path.isBlank() ? null : Path.of(path.trim());
+    }
+
+    public void setMaxFileSize(long size) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, size, "maxFileSize must be positive");
+        maxFileSize = size;
+    }
+
+    public void setMaxFiles(int files) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThanOrEqual(0, files, "maxFiles cannot be negative");
+        maxFiles = files;
+    }
+
+    public void setBufferSize(int size) {
+        checkSetterPreconditions();
+        Constraint.isTrue(size > 0 && Integer.bitCount(size) == 1, "bufferSize must be a power of two");
+        bufferSize = size;
+    }
+
+    public void setMetrics(@Nonnull FabricationMetrics newMetrics) {
+        checkSetterPreconditions();
+        metrics = Constraint.isNotNull(newMetrics, "FabricationMetrics cannot be null");
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (null == metrics) {
+            throw new ComponentInitializationException("FabricationMetrics cannot be null");
+        }
+
+        if (file == null) return;
+
+        buffer = new AuditRingBuffer<>(bufferSize);
+        metrics.registerGauge("audit.dropped", dropped::sum);
+        running = true;
+        writerThread = new Thread(this::runWriter, "andrvotr-audit-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        log.info("andrvotr audit log is written to {}", file);
+    }
+
+    @Override
+    protected void doDestroy() {
+        running = false;
+        Thread thread = writerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                // Give it a chance to write the remaining events.
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.doDestroy();
+    }
+
+    public void recordIssuance(@Nonnull String front, @Nullable String principal, boolean reused) {
+        if (buffer == null) return;
+        record(new AuditEvent(
+                System.currentTimeMillis(), reused ? "reuse" : "issue", front, null, principal, 0, null, null, -1));
+    }
+
+    public void recordFabrication(
+            @Nullable String front,
+            @Nullable String back,
+            @Nullable String principal,
+            int status,
+            @Nullable String error,
+            @Nullable List<String> trace,
+            long latencyNanos) {
+        if (buffer == null) return;
+        String lastState = trace == null || trace.isEmpty() ? null : trace.get(trace.size() - 1);
+        record(new AuditEvent(
+                System.currentTimeMillis(),
+                "fabricate",
+                front,
+                back,
+                principal,
+                status,
+                error,
+                lastState,
+                latencyNanos));
+    }
+
+    private void record(@Nonnull AuditEvent event) {
+        AuditRingBuffer<AuditEvent> currentBuffer = buffer;
+        if (currentBuffer == null) return;
+        if (!currentBuffer.offer(event)) dropped.increment();
+    }
+
+    private void runWriter() {
+        long written = 0;
+        long lastDroppedLogNanos = System.nanoTime();
+        long lastDroppedCount = 0;
+        OutputStream stream = null;
+        try {
+            stream = open();
+            written = Files.size(file);
+            StringBuilder line = new StringBuilder(512);
+            while (true) {
+                AuditEvent event = buffer.poll();
+                if (event == null) {
+                    stream.flush();
+                    long droppedCount = dropped.sum();
+                    if (droppedCount != lastDroppedCount
+                            && System.nanoTime() - lastDroppedLogNanos > DROPPED_LOG_INTERVAL_NANOS) {
+                        log.warn("andrvotr audit log buffer was full, {} events dropped so far", droppedCount);
+                        lastDroppedCount = droppedCount;
+                        lastDroppedLogNanos = System.nanoTime();
+                    }
+                    if (!running) break;
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                line.setLength(0);
+                format(event, line);
+                byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+                if (written > 0 && written + bytes.length > maxFileSize) {
+                    stream.close();
+                    rotate();
+                    stream = open();
+                    written = 0;
+                }
+                stream.write(bytes);
+                written += bytes.length;
+            }
+        } catch (IOException | RuntimeException e) {
+            // The buffer will fill up and further events will be counted as dropped.
+            log.error("andrvotr audit log writer failed, audit events will not be written", e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    log.warn("could not close andrvotr audit log", e);
+                }
+            }
+        }
+    }
+
+    private @Nonnull OutputStream open() throws IOException {
+        return new BufferedOutputStream(Files.newOutputStream(
+                file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    private void rotate() throws IOException {
+        if (maxFiles == 0) {
+            Files.delete(file);
+            return;
+        }
+        Files.deleteIfExists(rotatedFile(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path source = rotatedFile(i);
+            if (Files.exists(source)) Files.move(source, rotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(file, rotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private @Nonnull Path rotatedFile(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private static void format(@Nonnull AuditEvent event, @Nonnull StringBuilder json) {
+        json.append("{\"ts\":\"").append(Instant.ofEpochMilli(event.timestampMillis())).append('"');
+        json.append(",\"event\":\"").append(event.event()).append('"');
+        json.append(",\"front\":");
+        HttpController.appendJsonString(json, event.front());
+        json.append(",\"back\":");
+        HttpController.appendJsonString(json, event.back());
+        json.append(",\"principal\":");
+        HttpController.appendJsonString(json, event.principal());
+        json.append(",\"status\":");
+        json.append(event.status() > 0 ? Integer.toString(event.status()) : "null");
+        json.append(",\"error\":");
+        HttpController.appendJsonString(json, event.error());
+        json.append(",\"trace\":");
+        HttpController.appendJsonString(json, event.trace());
+        json.append(",\"latency_us\":");
+        json.append(event.latencyNanos() >= 0 ? Long.toString(event.latencyNanos() / 1000) : "null");
+        json.append("}\n");
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// A bounded lock-free queue with many producers (request threads) and one consumer (the AuditLog writer thread).
+///
+/// This is Dmitry Vyukov's bounded MPMC queue, simplified for a single consumer. Every slot has a sequence number
+/// which says whose turn it is: `seq == pos` means the slot is free for the producer claiming position `pos`, and
+/// `seq == pos + 1` means it holds the element at `pos` for the consumer. Producers claim positions with a CAS on
+/// `tail`, so offer() never blocks and never waits for other producers. If the queue is full, offer() returns false.
+///
+/// Writing an element and then setting the slot's sequence (a volatile write) publishes the element to the consumer,
+/// which reads the sequence first, so the element array itself doesn't need to be volatile.
+final class AuditRingBuffer<T> {
+
+    private final int mask;
+
+    private final @Nonnull Object[] elements;
+
+    private final @Nonnull AtomicLongArray sequences;
+
+    private final @Nonnull AtomicLong tail = new AtomicLong();
+
+    /// Only used by the consumer thread.
+    private long head;
+
+    /// `capacity` must be a power of two.
+    AuditRingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        mask = capacity - 1;
+        elements = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequences.set(i, i);
+    }
+
+    /// Adds an element, or returns false if the queue is full. Safe to call from any thread.
+    boolean offer(@Nonnull T element) {
+        long pos = tail.get();
+        while (true) {
+            int slot = (int) (pos & mask);
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements[slot] = element;
+                    sequences.set(slot, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // The consumer hasn't taken the element from one lap ago yet.
+                return false;
+            } else {
+                // Another producer claimed this position first.
+                pos = tail.get();
+            }
+        }
+    }
+
+    /// Removes the oldest element, or returns null if the queue is empty. Only the consumer thread may call this.
+    @SuppressWarnings("unchecked")
+    @Nullable T poll() {
+        int slot = (int) (head & mask);
+        if (sequences.get(slot) != head + 1) return null;
+        T element = (T) elements[slot];
+        elements[slot] = null;
+        // Make the slot free for the producer one lap later.
+        sequences.set(slot, head + mask + 1);
+        head++;
+        return element;
+    }
+}
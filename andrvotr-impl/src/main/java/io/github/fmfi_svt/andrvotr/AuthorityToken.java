@@ -0,0 +1,28 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.time.Instant;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// Decrypted and parsed contents of an Andrvotr Authority Token.
+///
+/// V1 tokens contain the full `frontEntityID`, V2 tokens only its `frontHash` (see AuthorityTokenCodec), so exactly
+/// one of them is meaningful. Use isFor() instead of reading them directly. `expiration` is null for V1 tokens, whose
+/// plaintext does not include it.
+record AuthorityToken(
+        @Nullable String frontEntityID, long frontHash, @Nonnull String cookies, @Nullable Instant expiration) {
+
+    boolean isFor(@Nonnull String requestFrontEntityID) {
+        if (frontEntityID != null) return frontEntityID.equals(requestFrontEntityID);
+        return frontHash == AuthorityTokenCodec.frontHash(requestFrontEntityID);
+    }
+
+    /// Returns the value of one of the cookies, e.g. the IdP session cookie, whose value is the IdP session ID.
+    @Nullable String getCookie(@Nonnull String name) {
+        for (String cookie : cookies.split(";", -1)) {
+            cookie = cookie.trim();
+            if (cookie.startsWith(name + "=")) return cookie.substring(name.length() + 1);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,106 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import org.slf4j.Logger;
+
+/// Remembers recently decrypted authority tokens, so that HttpController doesn't have to unwrap and parse the same
+/// token again when a front service uses it for several back service logins.
+///
+/// Entries are keyed by a SHA-256 digest of the sealed token, so the cache doesn't keep the tokens themselves. V2
+/// entries disappear at the token's own expiration. The V1 plaintext doesn't contain the expiration (DataSealer checks
+/// it, but doesn't return it), so V1 entries are kept for ttl. A V1 token which expires during ttl is still accepted
+/// until its entry expires, so ttl should be short. If the cache is full, expired entries are purged, and if that is
+/// not enough, new entries are not added until some old ones expire. A maxSize of 0 disables the cache, and a ttl of 0
+/// disables it for V1 tokens.
+final class AuthorityTokenCache {
+
+    private record Entry(@Nonnull AuthorityToken token, long expirationNanos) {}
+
+    /// How often to log the hit and miss counters, measured in misses.
+    private static final long STATS_LOG_INTERVAL = 1000;
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(AuthorityTokenCache.class);
+
+    private final int maxSize;
+
+    private final @Nonnull Duration ttl;
+
+    private final @Nonnull Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final @Nonnull LongAdder hits = new LongAdder();
+
+    private final @Nonnull LongAdder misses = new LongAdder();
+
+    AuthorityTokenCache(int maxSize, @Nonnull Duration ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    private static @Nonnull String digest(@Nonnull String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Nullable AuthorityToken get(@Nonnull String token) {
+        if (maxSize <= 0) return null;
+
+        String key = digest(token);
+        Entry entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.expirationNanos() < 0) {
+            hits.increment();
+            return entry.token();
+        }
+        if (entry != null) entries.remove(key, entry);
+
+        misses.increment();
+        if (misses.sum() % STATS_LOG_INTERVAL == 0) {
+            log.info("authority token cache: hits={} misses={} size={}", hits.sum(), misses.sum(), entries.size());
+        }
+        return null;
+    }
+
+    void put(@Nonnull String token, @Nonnull AuthorityToken parsed) {
+        if (maxSize <= 0) return;
+        Instant expiration = parsed.expiration();
+        if (expiration == null && ttl.isZero()) return;
+
+        long now = System.nanoTime();
+        long lifetimeNanos = expiration == null
+                ? ttl.toNanos()
+                : Math.max(0, Instant.now().until(expiration, ChronoUnit.NANOS));
+        if (entries.size() >= maxSize) {
+            entries.values().removeIf(entry -> now - entry.expirationNanos() >= 0);
+            if (entries.size() >= maxSize) return;
+        }
+        entries.put(digest(token), new Entry(parsed, now + lifetimeNanos));
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,129 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// The binary plaintext of V2 authority tokens ("A2:").
+///
+/// Layout, all integers big-endian:
+///
+/// - 1 byte: version, always 2
+/// - 8 bytes: expiration in epoch milliseconds
+/// - 8 bytes: first 8 bytes of the SHA-256 of the front entity ID (see frontHash)
+/// - 1 byte: number of cookies
+/// - for each cookie: 2 bytes name length, name (UTF-8), 2 bytes value length, value (UTF-8)
+///
+/// DataSealer only seals strings, so the bytes are passed to it as an ISO-8859-1 string, which maps every byte to one
+/// char. The sealed result is standard base64, which is converted to unpadded base64url, so that front services can
+/// put the token in URLs and forms without escaping.
+///
+/// The front entity ID is only a hash because HttpController gets the full ID from the request anyway. It just needs
+/// to check that the token was issued to the same front service. A collision would need an attacker who controls two
+/// configured front services, and then they could use their own token anyway.
+final class AuthorityTokenCodec {
+    private AuthorityTokenCodec() {}
+
+    private static final byte VERSION = 2;
+
+    private static final int HEADER_SIZE = 1 + 8 + 8 + 1;
+
+    static long frontHash(@Nonnull String frontEntityID) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(frontEntityID.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /// Cookie names and values must each be shorter than 64 KiB, and there must be fewer than 256 cookies.
+    static @Nonnull String encode(
+            @Nonnull String frontEntityID, @Nonnull Map<String, String> cookies, @Nonnull Instant expiration) {
+        byte[][] fields = new byte[cookies.size() * 2][];
+        int size = HEADER_SIZE;
+        int i = 0;
+        for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+            fields[i++] = cookie.getKey().getBytes(StandardCharsets.UTF_8);
+            fields[i++] = cookie.getValue().getBytes(StandardCharsets.UTF_8);
+        }
+        for (byte[] field : fields) {
+            if (field.length > 0xFFFF) throw new IllegalArgumentException("Cookie too long");
+            size += 2 + field.length;
+        }
+        if (cookies.size() > 0xFF) throw new IllegalArgumentException("Too many cookies");
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(VERSION);
+        buffer.putLong(expiration.toEpochMilli());
+        buffer.putLong(frontHash(frontEntityID));
+        buffer.put((byte) cookies.size());
+        for (byte[] field : fields) {
+            buffer.putShort((short) field.length);
+            buffer.put(field);
+        }
+        return new String(buffer.array(), StandardCharsets.ISO_8859_1);
+    }
+
+    /// Returns null if the plaintext is not a valid V2 token.
+    static @Nullable AuthorityToken decode(@Nonnull String plaintext) {
+        ByteBuffer buffer = ByteBuffer.wrap(plaintext.getBytes(StandardCharsets.ISO_8859_1));
+        try {
+            if (buffer.get() != VERSION) return null;
+            Instant expiration = Instant.ofEpochMilli(buffer.getLong());
+            long frontHash = buffer.getLong();
+            int count = Byte.toUnsignedInt(buffer.get());
+
+            StringBuilder cookies = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                if (i != 0) cookies.append("; ");
+                appendField(buffer, cookies);
+                cookies.append('=');
+                appendField(buffer, cookies);
+            }
+            if (buffer.hasRemaining()) return null;
+
+            return new AuthorityToken(null, frontHash, cookies.toString(), expiration);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private static void appendField(@Nonnull ByteBuffer buffer, @Nonnull StringBuilder output) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (length > buffer.remaining()) throw new BufferUnderflowException();
+        output.append(new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8));
+        buffer.position(buffer.position() + length);
+    }
+
+    /// Converts DataSealer's standard base64 output to unpadded base64url.
+    static @Nonnull String toBase64Url(@Nonnull String base64) {
+        int end = base64.length();
+        while (end > 0 && base64.charAt(end - 1) == '=') end--;
+        char[] chars = new char[end];
+        for (int i = 0; i < end; i++) {
+            char c = base64.charAt(i);
+            chars[i] = c == '+' ? '-' : c == '/' ? '_' : c;
+        }
+        return new String(chars);
+    }
+
+    /// The inverse of toBase64Url.
+    static @Nonnull String fromBase64Url(@Nonnull String base64Url) {
+        int length = base64Url.length();
+        char[] chars = new char[(length + 3) / 4 * 4];
+        for (int i = 0; i < length; i++) {
+            char c = base64Url.charAt(i);
+            chars[i] = c == '-' ? '+' : c == '_' ? '/' : c;
+        }
+        for (int i = length; i < chars.length; i++) chars[i] = '=';
+        return new String(chars);
+    }
+}
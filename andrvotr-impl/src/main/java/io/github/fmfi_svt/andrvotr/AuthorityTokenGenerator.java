@@ -6,7 +6,9 @@ import jakarta.servlet.http.HttpServletResponse;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -30,6 +32,15 @@ import org.springframework.webflow.execution.RequestContext;
 public final class AuthorityTokenGenerator extends AbstractInitializableComponent
         implements Function<ProfileRequestContext, List<IdPAttributeValue>> {
 
+    /// Which kind of authority tokens to create. HttpController accepts both.
+    public enum Format {
+        /// "A1:" tokens with a text plaintext. Understood by all versions of Andrvotr.
+        V1,
+        /// "A2:" tokens with a shorter binary plaintext, see AuthorityTokenCodec. Only switch to it when all IdP nodes
+        /// have a version which accepts them.
+        V2,
+    }
+
     private final @Nonnull Logger log = LoggerFactory.getLogger(AuthorityTokenGenerator.class);
 
     private Config config;
@@ -40,6 +51,16 @@ public final class AuthorityTokenGenerator extends AbstractInitializableComponen
 
     private Duration tokenLifetime;
 
+    private @Nonnull Format tokenFormat = Format.V1;
+
+    private int reuseMaxSize;
+
+    private @Nonnull Duration reuseMinRemainingLifetime = Duration.ofMinutes(4);
+
+    private AuthorityTokenReuseCache reuseCache;
+
+    private AuditLog auditLog;
+
     public void setConfig(@Nonnull Config newConfig) {
         checkSetterPreconditions();
         config = Constraint.isNotNull(newConfig, "Config cannot be null");
@@ -63,6 +84,29 @@ public final class AuthorityTokenGenerator extends AbstractInitializableComponen
         tokenLifetime = lifetime;
     }
 
+    public void setTokenFormat(@Nonnull Format format) {
+        checkSetterPreconditions();
+        tokenFormat = Constraint.isNotNull(format, "Format cannot be null");
+    }
+
+    public void setReuseMaxSize(int size) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThanOrEqual(0, size, "reuseMaxSize cannot be negative");
+        reuseMaxSize = size;
+    }
+
+    public void setReuseMinRemainingLifetime(@Nonnull Duration lifetime) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(lifetime, "Lifetime cannot be null");
+        Constraint.isFalse(lifetime.isNegative(), "Lifetime cannot be negative");
+        reuseMinRemainingLifetime = lifetime;
+    }
+
+    public void setAuditLog(@Nonnull AuditLog newAuditLog) {
+        checkSetterPreconditions();
+        auditLog = Constraint.isNotNull(newAuditLog, "AuditLog cannot be null");
+    }
+
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -79,6 +123,20 @@ public final class AuthorityTokenGenerator extends AbstractInitializableComponen
         if (null == tokenLifetime) {
             throw new ComponentInitializationException("Lifetime cannot be null");
         }
+        if (null == auditLog) {
+            throw new ComponentInitializationException("AuditLog cannot be null");
+        }
+        if (reuseMaxSize > 0 && reuseMinRemainingLifetime.compareTo(tokenLifetime) >= 0) {
+            // No token could ever be reused. Probably a mistake, e.g. a longer minimum but a default lifetime.
+            throw new ComponentInitializationException("reuseMinRemainingLifetime must be shorter than tokenLifetime");
+        }
+
+        reuseCache = new AuthorityTokenReuseCache(reuseMaxSize, reuseMinRemainingLifetime);
+    }
+
+    /// Forgets the reusable tokens of an IdP session which has ended.
+    public void invalidateSession(@Nonnull String idpSessionId) {
+        reuseCache.invalidateSession(idpSessionId);
     }
 
     public @Nullable List<IdPAttributeValue> apply(@Nullable ProfileRequestContext prc) {
@@ -177,20 +235,41 @@ public final class AuthorityTokenGenerator extends AbstractInitializableComponen
 
         String cookies = (jsessionidCookieName + "=" + jsessionid) + "; " + (idpSessionCookieName + "=" + idpSessionId);
 
-        String plainToken = Constants.AUTHORITY_TOKEN_INNER_PREFIX + "\n" + rpId + "\n" + cookies;
-        log.trace("plainToken = [{}]", plainToken.replace("\n", "[\\n]"));
+        String reusedToken = reuseCache.get(idpSessionId, rpId, cookies);
+        if (reusedToken != null) {
+            log.debug("reusing authority token for service={}", rpId);
+            auditLog.recordIssuance(rpId, idpSession.getPrincipalName(), true);
+            return List.of(new StringAttributeValue(reusedToken));
+        }
 
+        Instant expiration = Instant.now().plus(tokenLifetime);
         try {
-            String wrappedToken = dataSealer.wrap(plainToken, Instant.now().plus(tokenLifetime));
-            String completeToken = Constants.AUTHORITY_TOKEN_OUTER_PREFIX + wrappedToken;
+            String completeToken;
+            if (tokenFormat == Format.V2) {
+                Map<String, String> cookieMap = new LinkedHashMap<>();
+                cookieMap.put(jsessionidCookieName, jsessionid);
+                cookieMap.put(idpSessionCookieName, idpSessionId);
+                String plainToken = AuthorityTokenCodec.encode(rpId, cookieMap, expiration);
+                completeToken = Constants.AUTHORITY_TOKEN_OUTER_PREFIX_V2
+                        + AuthorityTokenCodec.toBase64Url(dataSealer.wrap(plainToken, expiration));
+            } else {
+                // No expiration line, because older versions reject tokens with more than 3 lines, and in a cluster
+                // they may receive this token during an upgrade.
+                String plainToken = Constants.AUTHORITY_TOKEN_INNER_PREFIX + "\n" + rpId + "\n" + cookies;
+                log.trace("plainToken = [{}]", plainToken.replace("\n", "[\\n]"));
+                completeToken = Constants.AUTHORITY_TOKEN_OUTER_PREFIX + dataSealer.wrap(plainToken, expiration);
+            }
             log.trace("completeToken = [{}]", completeToken);
+            reuseCache.put(idpSessionId, rpId, cookies, completeToken, expiration);
+            auditLog.recordIssuance(rpId, idpSession.getPrincipalName(), false);
             return List.of(new StringAttributeValue(completeToken));
         } catch (DataSealerException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private String getRealJsessionid(String cookieName, HttpServletRequest request, HttpServletResponse response) {
+    // Package-private for andrvotr-benchmarks.
+    String getRealJsessionid(String cookieName, HttpServletRequest request, HttpServletResponse response) {
         // We need the real JSESSIONID value in order to later send it in the "Cookie" header of a nested request.
         // request.getSession().getId() works as expected in Tomcat. But unfortunately not in Jetty. It does not
         // return the full JSESSIONID ("node7xxxxxx.node7"), but a truncated version ("node7xxxxxx"). To work around
@@ -0,0 +1,73 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// Remembers the authority tokens AuthorityTokenGenerator recently sealed, so that a user who signs in to the same
+/// front service again within the same IdP session gets the same token instead of a freshly sealed one.
+///
+/// Entries are keyed by IdP session ID and front entity ID. A token is only reused if the cookies it would contain are
+/// still the same (the JSESSIONID can change), and if at least minRemainingLifetime of its lifetime is left, so that
+/// the front service still has enough time to use it.
+///
+/// A token is only looked up while its IdP session is used for an SSO, so tokens of ended sessions are never reused.
+/// invalidateSession() frees their memory early. maxSize limits the number of IdP sessions. If the cache is full,
+/// expired entries are purged, and if that is not enough, new entries are not added until some old ones expire. A
+/// maxSize of 0 disables the cache.
+final class AuthorityTokenReuseCache {
+
+    private record Entry(@Nonnull String cookies, @Nonnull String token, @Nonnull Instant expiration) {}
+
+    private final int maxSize;
+
+    private final @Nonnull Duration minRemainingLifetime;
+
+    /// IdP session ID -> front entity ID -> entry. Nested, so that a whole session can be dropped at once.
+    private final @Nonnull Map<String, Map<String, Entry>> sessions = new ConcurrentHashMap<>();
+
+    AuthorityTokenReuseCache(int maxSize, @Nonnull Duration minRemainingLifetime) {
+        this.maxSize = maxSize;
+        this.minRemainingLifetime = minRemainingLifetime;
+    }
+
+    @Nullable String get(@Nonnull String idpSessionId, @Nonnull String frontEntityID, @Nonnull String cookies) {
+        if (maxSize <= 0) return null;
+
+        Map<String, Entry> entries = sessions.get(idpSessionId);
+        Entry entry = entries != null ? entries.get(frontEntityID) : null;
+        if (entry == null || !entry.cookies().equals(cookies)) return null;
+        if (Instant.now().plus(minRemainingLifetime).isAfter(entry.expiration())) {
+            entries.remove(frontEntityID, entry);
+            return null;
+        }
+        return entry.token();
+    }
+
+    void put(
+            @Nonnull String idpSessionId,
+            @Nonnull String frontEntityID,
+            @Nonnull String cookies,
+            @Nonnull String token,
+            @Nonnull Instant expiration) {
+        if (maxSize <= 0) return;
+
+        if (!sessions.containsKey(idpSessionId) && sessions.size() >= maxSize) {
+            Instant now = Instant.now();
+            sessions.values().removeIf(entries -> {
+                entries.values().removeIf(entry -> !now.isBefore(entry.expiration()));
+                return entries.isEmpty();
+            });
+            if (sessions.size() >= maxSize) return;
+        }
+        sessions.computeIfAbsent(idpSessionId, k -> new ConcurrentHashMap<>())
+                .put(frontEntityID, new Entry(cookies, token, expiration));
+    }
+
+    void invalidateSession(@Nonnull String idpSessionId) {
+        sessions.remove(idpSessionId);
+    }
+}
@@ -0,0 +1,261 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import org.apache.hc.client5.http.classic.HttpClient;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+
+/// Runs the whole front service login procedure (see README.md) on the IdP, for /idp/profile/andrvotr/login.
+///
+/// It starts with a GET of the back service's login URL, follows redirects and pseudo-redirect forms, and when the
+/// back service redirects to our SAML2/Redirect/SSO, the fabricator runs the nested request locally instead. The
+/// fabricated SAML response is then posted to the back service like a browser would. The result is the back service's
+/// session cookies, which HttpController returns to the front service.
+///
+/// Except for the fabrication, all requests must go to the login URL's origin (scheme, host and port), so that an
+/// allowed login URL can't be used to make the IdP send requests anywhere else. Because of that, cookies are simply
+/// kept by name, ignoring their Domain and Path.
+///
+/// The whole procedure must finish before the client's deadline. Each back service request only gets the remaining
+/// time, and when it runs out the login fails with HTTP 504.
+final class BackServiceLogin {
+
+    /// Sends the nested request for a SAML2/Redirect/SSO URL. Implemented by HttpController.fabricateOne().
+    interface Fabricator {
+        @Nonnull HttpController.FabricationResult fabricate(@Nonnull String targetUrl) throws IOException;
+    }
+
+    /// Outcome of a login. `error` is null on success, and then `finalUrl` is the last URL and `setCookies` contains
+    /// the last Set-Cookie header of each cookie which is still valid. `fabrication` is null if the login failed
+    /// before the back service redirected to the IdP.
+    record Result(
+            int status,
+            @Nullable String error,
+            @Nullable String finalUrl,
+            @Nonnull List<String> setCookies,
+            @Nullable HttpController.FabricationResult fabrication) {
+
+        static @Nonnull Result failure(
+                int status, @Nonnull String error, @Nullable HttpController.FabricationResult fabrication) {
+            return new Result(status, error, null, List.of(), fabrication);
+        }
+    }
+
+    /// A back service response, read completely so that the connection can go back to the pool.
+    private record Response(
+            int status,
+            @Nullable String location,
+            @Nullable String contentType,
+            @Nonnull List<String> setCookies,
+            @Nonnull byte[] body) {}
+
+    /// The last Set-Cookie header of a cookie, and the value parsed from it.
+    private record StoredCookie(@Nonnull String value, @Nonnull String setCookie) {}
+
+    private static final int MAX_REQUESTS = 20;
+
+    private static final int MAX_BODY_SIZE = 4 * 1024 * 1024;
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(BackServiceLogin.class);
+
+    private final @Nonnull HttpClient httpClient;
+
+    private final @Nonnull String ssoUrlPrefix;
+
+    private final long deadlineNanos;
+
+    BackServiceLogin(@Nonnull HttpClient httpClient, @Nonnull String expectedHost, long deadlineNanos) {
+        this.httpClient = httpClient;
+        this.ssoUrlPrefix = "https://" + expectedHost + "/idp/profile/SAML2/Redirect/SSO?";
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    @Nonnull Result run(@Nonnull URI loginUrl, @Nonnull Fabricator fabricator) throws IOException {
+        Map<String, StoredCookie> cookies = new LinkedHashMap<>();
+        HttpController.FabricationResult fabrication = null;
+        URI url = loginUrl;
+        Map<String, String> form = null;
+
+        for (int i = 0; i < MAX_REQUESTS; i++) {
+            if (form == null && url.toString().startsWith(ssoUrlPrefix)) {
+                if (fabrication != null) {
+                    return Result.failure(502, "Back service redirected to the IdP twice", fabrication);
+                }
+                fabrication = fabricator.fabricate(url.toString());
+                if (fabrication.error() != null) {
+                    return Result.failure(fabrication.status(), fabrication.error(), fabrication);
+                }
+                NestedResponse nestedResponse = fabrication.response();
+                PseudoRedirectForm next = parseForm(nestedResponse.contentType(), nestedResponse.body());
+                if (next == null) return Result.failure(502, "Fabricated response has no SAML form", fabrication);
+                url = url.resolve(next.action());
+                form = next.fields();
+                continue;
+            }
+
+            if (!isSameOrigin(url, loginUrl)) {
+                return Result.failure(502, "Back service login left its origin: " + url, fabrication);
+            }
+
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) return Result.failure(504, "Deadline exceeded", fabrication);
+            Timeout timeout = Timeout.ofMilliseconds(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos)));
+
+            log.debug("andrvotr/login: {} {}", form != null ? "POST" : "GET", url);
+            HttpUriRequestBase request = newRequest(url, form, cookies);
+            request.setConfig(RequestConfig.custom()
+                    .setConnectionRequestTimeout(timeout)
+                    .setResponseTimeout(timeout)
+                    .build());
+            Response response;
+            try {
+                response = execute(request);
+            } catch (InterruptedIOException e) {
+                // Includes connection pool and socket timeouts. Only the ones caused by the deadline are a 504.
+                if (System.nanoTime() - deadlineNanos < 0) throw e;
+                log.warn("andrvotr/login request to {} did not finish before the deadline", url, e);
+                return Result.failure(504, "Deadline exceeded", fabrication);
+            }
+            storeCookies(cookies, response.setCookies());
+
+            if (response.status() >= 300 && response.status() <= 399 && response.location() != null) {
+                url = url.resolve(response.location());
+                form = null;
+                continue;
+            }
+
+            if (response.status() == 200) {
+                PseudoRedirectForm next = parseForm(response.contentType(), response.body());
+                if (next != null) {
+                    url = url.resolve(next.action());
+                    form = next.fields();
+                    continue;
+                }
+            }
+
+            if (response.status() < 200 || response.status() > 299) {
+                return Result.failure(502, "Back service returned HTTP " + response.status(), fabrication);
+            }
+            if (fabrication == null) return Result.failure(502, "Back service did not redirect to the IdP", null);
+
+            List<String> setCookies = new ArrayList<>();
+            for (StoredCookie cookie : cookies.values()) setCookies.add(cookie.setCookie());
+            return new Result(200, null, url.toString(), setCookies, fabrication);
+        }
+
+        return Result.failure(502, "Back service login did not finish in " + MAX_REQUESTS + " requests", fabrication);
+    }
+
+    private @Nonnull Response execute(@Nonnull HttpUriRequestBase request) throws IOException {
+        return httpClient.execute(request, httpResponse -> {
+            HttpEntity entity = httpResponse.getEntity();
+            byte[] body = new byte[0];
+            if (entity != null) {
+                try (InputStream content = entity.getContent()) {
+                    body = content.readNBytes(MAX_BODY_SIZE + 1);
+                }
+            }
+            if (body.length > MAX_BODY_SIZE) {
+                throw new IOException("Back service response is larger than " + MAX_BODY_SIZE + " bytes");
+            }
+            Header location = httpResponse.getFirstHeader("Location");
+            List<String> setCookies = new ArrayList<>();
+            for (Header header : httpResponse.getHeaders("Set-Cookie")) setCookies.add(header.getValue());
+            return new Response(
+                    httpResponse.getCode(),
+                    location != null ? location.getValue() : null,
+                    entity != null ? entity.getContentType() : null,
+                    setCookies,
+                    body);
+        });
+    }
+
+    private static @Nonnull HttpUriRequestBase newRequest(
+            @Nonnull URI url, @Nullable Map<String, String> form, @Nonnull Map<String, StoredCookie> cookies) {
+        HttpUriRequestBase request;
+        if (form == null) {
+            request = new HttpGet(url);
+        } else {
+            List<NameValuePair> fields = new ArrayList<>();
+            form.forEach((name, value) -> fields.add(new BasicNameValuePair(name, value)));
+            HttpPost post = new HttpPost(url);
+            post.setEntity(new UrlEncodedFormEntity(fields, StandardCharsets.UTF_8));
+            request = post;
+        }
+        if (!cookies.isEmpty()) {
+            StringBuilder header = new StringBuilder();
+            for (Map.Entry<String, StoredCookie> cookie : cookies.entrySet()) {
+                if (header.length() != 0) header.append("; ");
+                header.append(cookie.getKey()).append('=').append(cookie.getValue().value());
+            }
+            request.addHeader("Cookie", header.toString());
+        }
+        return request;
+    }
+
+    private static void storeCookies(@Nonnull Map<String, StoredCookie> cookies, @Nonnull List<String> setCookies) {
+        for (String setCookie : setCookies) {
+            List<HttpCookie> parsed;
+            try {
+                parsed = HttpCookie.parse(setCookie);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            for (HttpCookie cookie : parsed) {
+                // HttpCookie converts Expires to Max-Age. 0 (or a date in the past) deletes the cookie.
+                if (cookie.getMaxAge() == 0) {
+                    cookies.remove(cookie.getName());
+                } else {
+                    cookies.put(cookie.getName(), new StoredCookie(cookie.getValue(), setCookie));
+                }
+            }
+        }
+    }
+
+    private static boolean isSameOrigin(@Nonnull URI a, @Nonnull URI b) {
+        return "https".equalsIgnoreCase(a.getScheme())
+                && "https".equalsIgnoreCase(b.getScheme())
+                && a.getHost() != null
+                && a.getHost().equalsIgnoreCase(b.getHost())
+                && a.getPort() == b.getPort();
+    }
+
+    private static @Nullable PseudoRedirectForm parseForm(@Nullable String contentType, @Nonnull byte[] body)
+            throws IOException {
+        if (contentType == null || !contentType.startsWith("text/html")) return null;
+        Charset charset = StandardCharsets.UTF_8;
+        try {
+            charset = Objects.requireNonNullElse(ContentType.parse(contentType).getCharset(), charset);
+        } catch (RuntimeException e) {
+            // Keep UTF-8.
+        }
+        return PseudoRedirectForm.parse(new InputStreamReader(new ByteArrayInputStream(body), charset));
+    }
+}
@@ -0,0 +1,307 @@
+package io.github.fmfi_svt.andrvotr;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// Response of an in-process nested "SAML2/Redirect/SSO" request.
+///
+/// Nothing is passed through to the wrapped andrvotr/fabricate response. The status, headers and body are kept in
+/// memory, and HttpController decides what to do with them after the flow finishes, just like it does with the response
+/// of a nested HTTP request.
+final class BufferingHttpServletResponse extends HttpServletResponseWrapper {
+
+    private final @Nonnull Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    private final @Nonnull ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private final int maxBodySize;
+
+    private int status = SC_OK;
+
+    private @Nullable String contentType;
+
+    private @Nullable String characterEncoding;
+
+    private @Nullable ServletOutputStream outputStream;
+
+    private @Nullable PrintWriter writer;
+
+    private boolean committed;
+
+    BufferingHttpServletResponse(@Nonnull HttpServletResponse response, int maxBodySize) {
+        super(response);
+        this.maxBodySize = maxBodySize;
+    }
+
+    @Nonnull NestedResponse toNestedResponse() {
+        if (writer != null) writer.flush();
+        List<String> trace = headers.getOrDefault(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_TRACE, List.of());
+        return new NestedResponse(
+                status,
+                contentType,
+                List.copyOf(trace),
+                getFirstHeader(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_BACK),
+                getFirstHeader(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_PRINCIPAL),
+                body.toByteArray());
+    }
+
+    private @Nullable String getFirstHeader(@Nonnull String name) {
+        List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        if (!committed) status = sc;
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public void sendError(int sc) {
+        sendError(sc, null);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) {
+        if (committed) throw new IllegalStateException("Response already committed");
+        status = sc;
+        committed = true;
+    }
+
+    @Override
+    public void sendRedirect(String location) {
+        if (committed) throw new IllegalStateException("Response already committed");
+        status = SC_FOUND;
+        setHeader("Location", location);
+        committed = true;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (committed) return;
+        if ("Content-Type".equalsIgnoreCase(name)) {
+            setContentType(value);
+            return;
+        }
+        List<String> values = new ArrayList<>();
+        values.add(value);
+        headers.put(name, values);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (committed) return;
+        if ("Content-Type".equalsIgnoreCase(name)) {
+            setContentType(value);
+            return;
+        }
+        headers.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        setHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        addHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        setHeader(name, formatDate(date));
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        addHeader(name, formatDate(date));
+    }
+
+    private static @Nonnull String formatDate(long date) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(date).atZone(ZoneOffset.UTC));
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+        return headers.containsKey(name);
+    }
+
+    @Override
+    public String getHeader(String name) {
+        List<String> values = headers.get(name);
+        return values != null && !values.isEmpty() ? values.get(0) : null;
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+        return List.copyOf(headers.getOrDefault(name, List.of()));
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return List.copyOf(headers.keySet());
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        // The nested request's cookies are never sent to the front service, just like with a nested HTTP request.
+    }
+
+    @Override
+    public void setContentType(String type) {
+        if (committed || writer != null) return;
+        contentType = type;
+        if (type != null) {
+            int index = type.toLowerCase(Locale.ROOT).indexOf("charset=");
+            if (index >= 0) characterEncoding = type.substring(index + "charset=".length()).trim();
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        if (committed || writer != null) return;
+        characterEncoding = charset;
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return characterEncoding != null ? characterEncoding : StandardCharsets.ISO_8859_1.name();
+    }
+
+    @Override
+    public void setContentLength(int len) {}
+
+    @Override
+    public void setContentLengthLong(long len) {}
+
+    @Override
+    public void setLocale(Locale loc) {}
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (writer != null) throw new IllegalStateException("getWriter() has already been called");
+        if (outputStream == null) outputStream = new BufferingOutputStream();
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        if (outputStream != null) throw new IllegalStateException("getOutputStream() has already been called");
+        if (writer == null) {
+            Charset charset = Charset.forName(getCharacterEncoding());
+            writer = new PrintWriter(new OutputStreamWriter(new BufferingOutputStream(), charset));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+        if (writer != null) writer.flush();
+        committed = true;
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    @Override
+    public void reset() {
+        if (committed) throw new IllegalStateException("Response already committed");
+        headers.clear();
+        body.reset();
+        status = SC_OK;
+        contentType = null;
+        characterEncoding = null;
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (committed) throw new IllegalStateException("Response already committed");
+        body.reset();
+    }
+
+    @Override
+    public void setBufferSize(int size) {}
+
+    @Override
+    public int getBufferSize() {
+        return maxBodySize;
+    }
+
+    private final class BufferingOutputStream extends ServletOutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            checkSize(1);
+            body.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkSize(len);
+            body.write(b, off, len);
+        }
+
+        private void checkSize(int len) throws IOException {
+            if (body.size() + len > maxBodySize) {
+                throw new IOException("Nested response is larger than " + maxBodySize + " bytes");
+            }
+        }
+
+        @Override
+        public void flush() {
+            committed = true;
+        }
+
+        @Override
+        public void close() {
+            committed = true;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            if (writeListener == null) throw new NullPointerException("WriteListener cannot be null");
+            // The buffer is always ready, so the listener can write everything right away.
+            try {
+                writeListener.onWritePossible();
+            } catch (IOException | RuntimeException e) {
+                writeListener.onError(e);
+            }
+        }
+    }
+}
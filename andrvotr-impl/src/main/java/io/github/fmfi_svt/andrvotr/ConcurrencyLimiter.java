@@ -0,0 +1,92 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+
+/// Adaptive limit of concurrent nested requests, so that when the SSO flow slows down, fabrications can't take all
+/// servlet container threads away from regular logins. Requests over the limit are rejected immediately, not queued.
+///
+/// The limit follows AIMD (additive increase, multiplicative decrease), like TCP congestion control. Every nested
+/// request which finishes within latencyThreshold raises the limit by 1/limit, i.e. by about 1 per `limit` requests.
+/// A slower one, or one which failed with an I/O error, multiplies it by BACKOFF_RATIO, but only once per round:
+/// requests which started before the last decrease don't decrease it again, otherwise one slow moment would push it
+/// straight to minLimit. Error responses only count by their latency, because most of them (e.g. a fabrication token
+/// rejected by FabricationWebflowListener) say nothing about load. The limit starts at maxLimit. A maxLimit of 0
+/// disables the limiter.
+final class ConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final long latencyThresholdNanos;
+
+    private final @Nonnull AtomicInteger inFlight = new AtomicInteger();
+
+    private final @Nonnull LongAdder rejected = new LongAdder();
+
+    /// Guarded by this.
+    private double limit;
+
+    /// Guarded by this.
+    private long lastDecreaseNanos = System.nanoTime();
+
+    /// (int) limit, for tryAcquire() without locking.
+    private volatile int currentLimit;
+
+    ConcurrencyLimiter(int minLimit, int maxLimit, @Nonnull Duration latencyThreshold) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThreshold.toNanos();
+        this.limit = maxLimit;
+        this.currentLimit = maxLimit;
+    }
+
+    /// Returns false if the limit is reached. Otherwise the caller must call release() when the request finishes.
+    boolean tryAcquire() {
+        if (maxLimit <= 0) return true;
+        while (true) {
+            int current = inFlight.get();
+            if (current >= currentLimit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /// `startNanos` is when the request started after tryAcquire(). `failed` means it failed with an I/O error, e.g. a
+    /// connection or socket timeout.
+    void release(long startNanos, boolean failed) {
+        if (maxLimit <= 0) return;
+        inFlight.decrementAndGet();
+
+        long now = System.nanoTime();
+        boolean slow = failed || now - startNanos > latencyThresholdNanos;
+        synchronized (this) {
+            if (!slow) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            } else if (startNanos - lastDecreaseNanos > 0) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastDecreaseNanos = now;
+            }
+            currentLimit = (int) limit;
+        }
+    }
+
+    int getLimit() {
+        return maxLimit <= 0 ? 0 : currentLimit;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -1,28 +1,85 @@
 package io.github.fmfi_svt.andrvotr;
 
 import com.google.common.base.Strings;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import net.shibboleth.shared.collection.CollectionSupport;
-import net.shibboleth.shared.collection.Pair;
 import net.shibboleth.shared.component.AbstractInitializableComponent;
 import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import org.slf4j.Logger;
 
+/// Parsed andrvotr.apiKeys, andrvotr.allowedConnections, andrvotr.fabricationQuotas and andrvotr.allowedLoginUrls.
+///
+/// If reloadFiles are configured, the properties are periodically re-read from those files. Each reload parses
+/// everything into a new Snapshot and then swaps it in with a single volatile write, so readers never block and never
+/// see a half-parsed state. If the new values can't be parsed, the previous snapshot stays in use.
 public final class Config extends AbstractInitializableComponent {
 
-    private @Nullable String apiKeysString;
+    private static final String API_KEYS_PROPERTY = "andrvotr.apiKeys";
+
+    private static final String ALLOWED_CONNECTIONS_PROPERTY = "andrvotr.allowedConnections";
+
+    private static final String FABRICATION_QUOTAS_PROPERTY = "andrvotr.fabricationQuotas";
 
-    private @Nonnull Set<Pair<String, String>> apiKeys = CollectionSupport.emptySet();
+    private static final String ALLOWED_LOGIN_URLS_PROPERTY = "andrvotr.allowedLoginUrls";
 
-    private @Nonnull Set<String> apiKeyFronts = CollectionSupport.emptySet();
+    /// Everything we know about one front service, precomputed so that lookups need a single map probe.
+    ///
+    /// API keys are only stored as SHA-256 digests. Comparing digests of equal length with MessageDigest.isEqual takes
+    /// constant time, so the comparison does not reveal how much of a guessed API key is correct.
+    private record FrontService(
+            @Nonnull Set<String> backIDs, @Nonnull List<byte[]> apiKeyDigests, boolean isKnown) {}
+
+    /// All parsed configuration. Replaced as a whole on reload. `loginUrls` maps each allowed login URL to its back
+    /// entity ID.
+    private record Snapshot(
+            @Nonnull Map<String, FrontService> frontServices,
+            @Nonnull Map<String, FabricationQuota> quotas,
+            @Nonnull Map<String, String> loginUrls) {}
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(Config.class);
+
+    private @Nullable String apiKeysString;
 
     private @Nullable String allowedConnectionsString;
 
-    private @Nonnull Set<Pair<String, String>> allowedConnections = CollectionSupport.emptySet();
+    private @Nullable String fabricationQuotasString;
+
+    private @Nullable String allowedLoginUrlsString;
+
+    private @Nonnull List<Path> reloadFiles = Collections.emptyList();
+
+    private @Nonnull Duration reloadCheckInterval = Duration.ZERO;
+
+    private volatile @Nonnull Snapshot snapshot =
+            new Snapshot(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
 
-    private @Nonnull Set<String> allowedConnectionFronts = CollectionSupport.emptySet();
+    private @Nonnull Map<Path, FileTime> reloadFileTimes = Collections.emptyMap();
+
+    private @Nullable ScheduledExecutorService reloadExecutor;
 
     public void setApiKeys(@Nullable String string) {
         checkSetterPreconditions();
@@ -34,14 +91,43 @@ public final class Config extends AbstractInitializableComponent {
         allowedConnectionsString = string;
     }
 
-    private static void parsePairs(
+    public void setFabricationQuotas(@Nullable String string) {
+        checkSetterPreconditions();
+        fabricationQuotasString = string;
+    }
+
+    public void setAllowedLoginUrls(@Nullable String string) {
+        checkSetterPreconditions();
+        allowedLoginUrlsString = string;
+    }
+
+    /// Comma-separated list of property files to watch. Empty disables reloading.
+    public void setReloadFiles(@Nullable String files) {
+        checkSetterPreconditions();
+        List<Path> result = new ArrayList<>();
+        if (files != null) {
+            for (String file : files.split(",", -1)) {
+                if (!file.isBlank()) result.add(Path.of(file.trim()));
+            }
+        }
+        reloadFiles = Collections.unmodifiableList(result);
+    }
+
+    public void setReloadCheckInterval(@Nonnull Duration interval) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(interval, "Interval cannot be null");
+        Constraint.isFalse(interval.isNegative(), "Interval cannot be negative");
+        reloadCheckInterval = interval;
+    }
+
+    // Package-private for HttpController, which uses the same format for andrvotr.nestedRequest.nodeAddresses.
+    static void parsePairs(
             String input,
             String separator,
             String displayName,
             String firstName,
             String secondName,
-            Set<Pair<String, String>> outputPairs,
-            Set<String> outputFirsts)
+            Map<String, Set<String>> output)
             throws ComponentInitializationException {
         if (Strings.isNullOrEmpty(input)) return;
 
@@ -69,40 +155,231 @@ public final class Config extends AbstractInitializableComponent {
                 throw new ComponentInitializationException(String.format(
                         "Could not parse %s value: The %s is empty in '%s'", displayName, secondName, part));
             }
-            outputPairs.add(new Pair<>(subparts[0], subparts[1]));
-            outputFirsts.add(subparts[0]);
+            output.computeIfAbsent(subparts[0], k -> new HashSet<>()).add(subparts[1]);
         }
     }
 
-    @Override
-    protected void doInitialize() throws ComponentInitializationException {
-        super.doInitialize();
+    private static @Nonnull byte[] digestApiKey(@Nonnull String apiKey) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(apiKey.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
 
-        apiKeys = new HashSet<>();
-        apiKeyFronts = new HashSet<>();
-        parsePairs(apiKeysString, "##", "andrvotr.apiKeys", "front entity ID", "API key", apiKeys, apiKeyFronts);
+    /// Parses "LIMIT/WINDOW", e.g. "100/PT1M".
+    private static @Nonnull FabricationQuota parseQuota(@Nonnull String frontID, @Nonnull String value)
+            throws ComponentInitializationException {
+        // -1 because of https://errorprone.info/bugpattern/StringSplitter
+        String[] parts = value.split("/", -1);
+        try {
+            if (parts.length == 2) {
+                int limit = Integer.parseInt(parts[0]);
+                Duration window = Duration.parse(parts[1]);
+                if (limit > 0 && window.toSeconds() >= 1) return new FabricationQuota(limit, window);
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            // Fall through.
+        }
+        throw new ComponentInitializationException(String.format(
+                "Could not parse %s value: Expected a positive limit and a window of at least one second like"
+                        + " '100/PT1M', but found '%s' for '%s'",
+                FABRICATION_QUOTAS_PROPERTY, value, frontID));
+    }
+
+    private static @Nonnull Snapshot parse(
+            @Nullable String apiKeysValue,
+            @Nullable String allowedConnectionsValue,
+            @Nullable String fabricationQuotasValue,
+            @Nullable String allowedLoginUrlsValue)
+            throws ComponentInitializationException {
+        Map<String, Set<String>> apiKeys = new LinkedHashMap<>();
+        parsePairs(apiKeysValue, "##", API_KEYS_PROPERTY, "front entity ID", "API key", apiKeys);
 
-        allowedConnections = new HashSet<>();
-        allowedConnectionFronts = new HashSet<>();
+        Map<String, Set<String>> allowedConnections = new LinkedHashMap<>();
         parsePairs(
-                allowedConnectionsString,
+                allowedConnectionsValue,
                 ">>",
-                "andrvotr.allowedConnections",
+                ALLOWED_CONNECTIONS_PROPERTY,
                 "front entity ID",
                 "back entity ID",
-                allowedConnections,
-                allowedConnectionFronts);
+                allowedConnections);
+
+        Set<String> frontIDs = new HashSet<>(apiKeys.keySet());
+        frontIDs.addAll(allowedConnections.keySet());
+
+        Map<String, FrontService> result = new HashMap<>();
+        for (String frontID : frontIDs) {
+            Set<String> backIDs = allowedConnections.getOrDefault(frontID, Collections.emptySet());
+            List<byte[]> apiKeyDigests = new ArrayList<>();
+            for (String apiKey : apiKeys.getOrDefault(frontID, Collections.emptySet())) {
+                apiKeyDigests.add(digestApiKey(apiKey));
+            }
+            result.put(
+                    frontID,
+                    new FrontService(
+                            Collections.unmodifiableSet(backIDs),
+                            Collections.unmodifiableList(apiKeyDigests),
+                            !backIDs.isEmpty() && !apiKeyDigests.isEmpty()));
+        }
+
+        Map<String, Set<String>> quotaStrings = new LinkedHashMap<>();
+        parsePairs(fabricationQuotasValue, "##", FABRICATION_QUOTAS_PROPERTY, "front entity ID", "quota", quotaStrings);
+
+        Map<String, FabricationQuota> quotas = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : quotaStrings.entrySet()) {
+            if (entry.getValue().size() != 1) {
+                throw new ComponentInitializationException(String.format(
+                        "Could not parse %s value: '%s' has more than one quota",
+                        FABRICATION_QUOTAS_PROPERTY, entry.getKey()));
+            }
+            quotas.put(entry.getKey(), parseQuota(entry.getKey(), entry.getValue().iterator().next()));
+        }
+
+        Map<String, Set<String>> loginUrlStrings = new LinkedHashMap<>();
+        parsePairs(
+                allowedLoginUrlsValue,
+                "##",
+                ALLOWED_LOGIN_URLS_PROPERTY,
+                "back entity ID",
+                "login URL",
+                loginUrlStrings);
+
+        Map<String, String> loginUrls = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : loginUrlStrings.entrySet()) {
+            for (String loginUrl : entry.getValue()) {
+                if (!loginUrl.startsWith("https://")) {
+                    throw new ComponentInitializationException(String.format(
+                            "Could not parse %s value: Login URL '%s' must start with https://",
+                            ALLOWED_LOGIN_URLS_PROPERTY, loginUrl));
+                }
+                String previous = loginUrls.put(loginUrl, entry.getKey());
+                if (previous != null) {
+                    throw new ComponentInitializationException(String.format(
+                            "Could not parse %s value: '%s' is a login URL of both '%s' and '%s'",
+                            ALLOWED_LOGIN_URLS_PROPERTY, loginUrl, previous, entry.getKey()));
+                }
+            }
+        }
+
+        return new Snapshot(
+                Collections.unmodifiableMap(result),
+                Collections.unmodifiableMap(quotas),
+                Collections.unmodifiableMap(loginUrls));
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        snapshot = parse(apiKeysString, allowedConnectionsString, fabricationQuotasString, allowedLoginUrlsString);
+
+        if (!reloadFiles.isEmpty() && !reloadCheckInterval.isZero()) {
+            reloadFileTimes = getFileTimes();
+            reloadExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "andrvotr-config-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long millis = reloadCheckInterval.toMillis();
+            reloadExecutor.scheduleWithFixedDelay(this::checkReloadFiles, millis, millis, TimeUnit.MILLISECONDS);
+            log.info("watching {} for andrvotr configuration changes every {}", reloadFiles, reloadCheckInterval);
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (reloadExecutor != null) reloadExecutor.shutdownNow();
+        super.doDestroy();
+    }
+
+    private @Nonnull Map<Path, FileTime> getFileTimes() {
+        Map<Path, FileTime> result = new HashMap<>();
+        for (Path file : reloadFiles) {
+            try {
+                result.put(file, Files.getLastModifiedTime(file));
+            } catch (IOException e) {
+                // A missing file is a change too, but not an error. reload() will complain if it matters.
+                result.put(file, FileTime.fromMillis(0));
+            }
+        }
+        return result;
+    }
+
+    private void checkReloadFiles() {
+        try {
+            Map<Path, FileTime> fileTimes = getFileTimes();
+            if (fileTimes.equals(reloadFileTimes)) return;
+            reloadFileTimes = fileTimes;
+            reload();
+        } catch (RuntimeException e) {
+            // Don't let an exception cancel the scheduled task.
+            log.error("andrvotr configuration reload check failed", e);
+        }
+    }
+
+    /// Re-reads andrvotr.apiKeys, andrvotr.allowedConnections, andrvotr.fabricationQuotas and andrvotr.allowedLoginUrls
+    /// from reloadFiles (later files override earlier ones) and swaps in the result. Properties missing from all files
+    /// keep their value from the initial startup.
+    public void reload() {
+        Properties properties = new Properties();
+        for (Path file : reloadFiles) {
+            try (InputStream stream = Files.newInputStream(file)) {
+                properties.load(stream);
+            } catch (IOException e) {
+                log.error("could not read {}, keeping the previous andrvotr configuration", file, e);
+                return;
+            }
+        }
+
+        Snapshot newSnapshot;
+        try {
+            newSnapshot = parse(
+                    properties.getProperty(API_KEYS_PROPERTY, apiKeysString),
+                    properties.getProperty(ALLOWED_CONNECTIONS_PROPERTY, allowedConnectionsString),
+                    properties.getProperty(FABRICATION_QUOTAS_PROPERTY, fabricationQuotasString),
+                    properties.getProperty(ALLOWED_LOGIN_URLS_PROPERTY, allowedLoginUrlsString));
+        } catch (ComponentInitializationException e) {
+            log.error(
+                    "invalid andrvotr configuration in {}, keeping the previous one: {}", reloadFiles, e.getMessage());
+            return;
+        }
+
+        snapshot = newSnapshot;
+        log.info("reloaded andrvotr configuration: {} front services", newSnapshot.frontServices().size());
     }
 
     public boolean isKnownFrontService(String frontID) {
-        return apiKeyFronts.contains(frontID) && allowedConnectionFronts.contains(frontID);
+        FrontService front = snapshot.frontServices().get(frontID);
+        return front != null && front.isKnown();
     }
 
     public boolean isValidApiKey(String frontID, String apiKey) {
-        return apiKeys.contains(new Pair<>(frontID, apiKey));
+        FrontService front = snapshot.frontServices().get(frontID);
+        if (front == null) return false;
+
+        byte[] digest = digestApiKey(apiKey);
+        boolean valid = false;
+        // No early exit, so that the time doesn't depend on which key matched.
+        for (byte[] knownDigest : front.apiKeyDigests()) {
+            valid |= MessageDigest.isEqual(knownDigest, digest);
+        }
+        return valid;
     }
 
     public boolean isAllowedConnection(String frontID, String backID) {
-        return allowedConnections.contains(new Pair<>(frontID, backID));
+        FrontService front = snapshot.frontServices().get(frontID);
+        return front != null && front.backIDs().contains(backID);
+    }
+
+    /// Returns the back entity ID whose login URL this is, or null if it is not in andrvotr.allowedLoginUrls.
+    @Nullable String getLoginUrlBackService(String loginUrl) {
+        return snapshot.loginUrls().get(loginUrl);
+    }
+
+    /// Returns null if this front service has no quota.
+    @Nullable FabricationQuota getFabricationQuota(String frontID) {
+        return snapshot.quotas().get(frontID);
     }
 }
@@ -4,21 +4,37 @@ public final class Constants {
     private Constants() {}
 
     // Strings used in Andrvotr Authority Tokens. Produced by AuthorityTokenGenerator and consumed by HttpController.
+    // The V1 plaintext is "<inner prefix>\n<front entity ID>\n<cookies>". The V2 plaintext is binary, see
+    // AuthorityTokenCodec.
     public static final String AUTHORITY_TOKEN_INNER_PREFIX = "ANDRVOTR_AUTHORITY_TOKEN_V1";
     public static final String AUTHORITY_TOKEN_OUTER_PREFIX = "A1:";
+    public static final String AUTHORITY_TOKEN_OUTER_PREFIX_V2 = "A2:";
 
     // HTTP header names used for internal communication between HttpController and FabricationWebflowListener.
     public static final String HEADER_ANDRVOTR_INTERNAL_FABRICATION_TOKEN = "Andrvotr-Internal-Fabrication-Token";
     public static final String HEADER_ANDRVOTR_INTERNAL_FABRICATION_FRONT = "Andrvotr-Internal-Fabrication-Front";
     public static final String HEADER_ANDRVOTR_INTERNAL_FABRICATION_TRACE = "Andrvotr-Internal-Fabrication-Trace";
+    public static final String HEADER_ANDRVOTR_INTERNAL_FABRICATION_BACK = "Andrvotr-Internal-Fabrication-Back";
+    public static final String HEADER_ANDRVOTR_INTERNAL_FABRICATION_PRINCIPAL =
+            "Andrvotr-Internal-Fabrication-Principal";
+    public static final String HEADER_ANDRVOTR_INTERNAL_FABRICATION_DEADLINE = "Andrvotr-Internal-Fabrication-Deadline";
 
-    // Token value used for internal communication between HttpController and FabricationWebflowListener.
+    // HTTP response header with a machine-readable error code, for errors which front services may want to handle
+    // specially. See README.md.
+    public static final String HEADER_ANDRVOTR_ERROR = "Andrvotr-Error";
+
+    // Token value used for internal communication between HttpController and FabricationWebflowListener. The sealed
+    // plaintext is this value, a newline, and the expiration in epoch milliseconds. See FabricationTokens.
     public static final String ANDRVOTR_FABRICATION_TOKEN_VALUE = "andrvotr-fabrication-token";
 
     // RequestContext request scope key used for internal communication between FabricationWebflowListener and
     // AddressLookupStrategy.
     public static final String ANDRVOTR_FABRICATION_TOKEN_OK = "andrvotr_fabrication_token_ok";
 
+    // RequestContext request scope key used inside FabricationWebflowListener. The value is the System.nanoTime() by
+    // which the nested request should finish.
+    public static final String ANDRVOTR_FABRICATION_DEADLINE = "andrvotr_fabrication_deadline";
+
     // State and event names defined in the Shibboleth flow "SAML2/Redirect/SSO". Arguably an internal implementation
     // detail of Shibboleth. See class doc of FabricationWebflowListener.
     public static final String STATE_DECODE_MESSAGE = "DecodeMessage";
@@ -32,4 +48,5 @@ public final class Constants {
     public static final String TRACE_ALLOWED_CONNECTION_CHECK = "@AllowedConnectionCheck";
     public static final String TRACE_ALLOWED_CONNECTION_CHECK_SUCCESS = "@AllowedConnectionCheckSuccess";
     public static final String TRACE_ALLOWED_CONNECTION_CHECK_FAILURE = "@AllowedConnectionCheckFailure";
+    public static final String TRACE_DEADLINE_EXCEEDED = "@DeadlineExceeded";
 }
@@ -0,0 +1,283 @@
+package io.github.fmfi_svt.andrvotr;
+
+import com.google.common.base.Strings;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+
+/// Remembers IdP sessions which were logged out, so that HttpController can reject their authority tokens right away
+/// instead of running a nested request which would fail somewhere inside the SSO flow.
+///
+/// LogoutWebflowListener calls recordEnded() at the end of every logout flow. Each ended session is stored in the
+/// StorageService for `retention` (the authority token lifetime, after which its tokens are expired anyway), and in a
+/// local ExpiringBloomFilter. Sessions are keyed by a SHA-256 digest of the session ID, so neither keeps the IDs
+/// themselves.
+///
+/// isEnded() first asks the Bloom filter. If it says no, the session was not logged out, and that is the answer. If it
+/// says maybe, the StorageService confirms it, because Bloom filters have false positives.
+///
+/// With clusterWide, the StorageService must be shared by all nodes, and so are the Bloom filters. Every
+/// `syncInterval`, each node ORs the buckets which changed since the last time into one stored record per time slot
+/// (with updateWithVersion, so that concurrent nodes don't overwrite each other), and merges the stored records into
+/// clusterFilter. A logout on another node is thus seen within about `syncInterval`. Until then, its tokens only fail
+/// later, in the nested request, because the IdP session is already gone.
+///
+/// If the StorageService fails, sessions are treated as not ended, like in FabricationQuotas.
+public final class EndedSessions extends AbstractInitializableComponent {
+
+    private static final String STORAGE_CONTEXT = "andrvotr.endedSession";
+
+    private static final String FILTER_STORAGE_CONTEXT = "andrvotr.endedSessionFilter";
+
+    private static final int MAX_ATTEMPTS = 10;
+
+    /// 128 KiB per bucket. About 1% false positives with 100000 logouts per bucket (a third of the retention).
+    private static final int FILTER_BITS = 1 << 20;
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(EndedSessions.class);
+
+    private StorageService storageService;
+
+    private String idpSessionCookieName;
+
+    private Duration retention;
+
+    private boolean clusterWide;
+
+    private @Nonnull Duration syncInterval = Duration.ofSeconds(10);
+
+    private ExpiringBloomFilter filter;
+
+    /// The other nodes' Bloom filters merged together (and this node's too), only with clusterWide.
+    private @Nullable ExpiringBloomFilter clusterFilter;
+
+    private @Nullable ScheduledExecutorService syncExecutor;
+
+    public void setStorageService(@Nonnull StorageService service) {
+        checkSetterPreconditions();
+        storageService = Constraint.isNotNull(service, "StorageService cannot be null");
+    }
+
+    public void setIdpSessionCookieName(@Nonnull String name) {
+        checkSetterPreconditions();
+        Constraint.isFalse(Strings.isNullOrEmpty(name), "idpSessionCookieName cannot be null or empty");
+        idpSessionCookieName = name;
+    }
+
+    public void setRetention(@Nonnull Duration newRetention) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(newRetention, "Retention cannot be null");
+        Constraint.isFalse(newRetention.isNegative() || newRetention.isZero(), "Retention must be positive");
+        retention = newRetention;
+    }
+
+    public void setClusterWide(boolean enabled) {
+        checkSetterPreconditions();
+        clusterWide = enabled;
+    }
+
+    public void setSyncInterval(@Nonnull Duration interval) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(interval, "syncInterval cannot be null");
+        Constraint.isFalse(interval.isNegative() || interval.isZero(), "syncInterval must be positive");
+        syncInterval = interval;
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (null == storageService) {
+            throw new ComponentInitializationException("StorageService cannot be null");
+        }
+        if (Strings.isNullOrEmpty(idpSessionCookieName)) {
+            throw new ComponentInitializationException("idpSessionCookieName cannot be null or empty");
+        }
+        if (null == retention) {
+            throw new ComponentInitializationException("Retention cannot be null");
+        }
+
+        filter = new ExpiringBloomFilter(FILTER_BITS, retention.toMillis());
+
+        if (clusterWide) {
+            clusterFilter = new ExpiringBloomFilter(FILTER_BITS, retention.toMillis());
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "andrvotr-ended-sessions-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long millis = syncInterval.toMillis();
+            syncExecutor.scheduleWithFixedDelay(this::sync, 0, millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (syncExecutor != null) syncExecutor.shutdownNow();
+        super.doDestroy();
+    }
+
+    public void recordEnded(@Nonnull String idpSessionId) {
+        byte[] digest = digest(idpSessionId);
+        filter.add(digest);
+        try {
+            // Returns false if another node already stored it, which is fine.
+            storageService.create(
+                    STORAGE_CONTEXT,
+                    HexFormat.of().formatHex(digest),
+                    "1",
+                    System.currentTimeMillis() + retention.toMillis());
+        } catch (IOException e) {
+            log.warn("andrvotr could not store ended IdP session", e);
+        }
+    }
+
+    /// True if the IdP session in the token's cookies was logged out.
+    boolean isEnded(@Nonnull AuthorityToken token) {
+        String idpSessionId = token.getCookie(idpSessionCookieName);
+        if (idpSessionId == null) return false;
+
+        byte[] digest = digest(idpSessionId);
+        if (!filter.mightContain(digest) && (clusterFilter == null || !clusterFilter.mightContain(digest))) {
+            return false;
+        }
+        try {
+            return storageService.read(STORAGE_CONTEXT, HexFormat.of().formatHex(digest)) != null;
+        } catch (IOException e) {
+            log.warn("andrvotr ended session storage failed, assuming the session is active", e);
+            return false;
+        }
+    }
+
+    private void sync() {
+        try {
+            long currentSlot = filter.currentSlot();
+            for (long slot = currentSlot - ExpiringBloomFilter.BUCKETS + 1; slot <= currentSlot; slot++) {
+                syncSlot(slot);
+            }
+        } catch (IOException e) {
+            log.warn("andrvotr could not share ended IdP sessions with other nodes", e);
+        } catch (RuntimeException e) {
+            // Don't let an exception cancel the scheduled task.
+            log.error("andrvotr ended session sync failed", e);
+        }
+    }
+
+    private void syncSlot(long slot) throws IOException {
+        long[] changes = filter.takeChanges(slot);
+        long[] shared;
+        try {
+            shared = publish(slot, changes);
+        } catch (IOException | RuntimeException e) {
+            if (changes != null) filter.markChanged(slot);
+            throw e;
+        }
+        if (shared != null) clusterFilter.merge(slot, shared);
+    }
+
+    /// ORs `changes` (if not null) into the stored filter of `slot`. Returns the stored filter, or null if there is
+    /// none. The slot length is part of the key, so that nodes with a different retention don't mix their filters.
+    private @Nullable long[] publish(long slot, @Nullable long[] changes) throws IOException {
+        String key = slot + "." + filter.slotMillis();
+        long expiration = (slot + ExpiringBloomFilter.BUCKETS) * filter.slotMillis();
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            StorageRecord<?> record = storageService.read(FILTER_STORAGE_CONTEXT, key);
+            long[] stored = record != null ? decodeFilter(record.getValue(), FILTER_BITS / 64) : null;
+            if (changes == null) return stored;
+
+            long[] merged = changes.clone();
+            if (stored != null) {
+                for (int i = 0; i < merged.length; i++) merged[i] |= stored[i];
+            }
+            String value = encodeFilter(merged);
+            if (value.length() > storageService.getCapabilities().getValueSize()) {
+                throw new IOException("Ended session filter is too large for the StorageService: " + value.length());
+            }
+
+            if (record == null) {
+                if (storageService.create(FILTER_STORAGE_CONTEXT, key, value, expiration)) return merged;
+                // Another node created it first.
+                continue;
+            }
+            try {
+                Long version = storageService.updateWithVersion(
+                        record.getVersion(), FILTER_STORAGE_CONTEXT, key, value, expiration);
+                if (version != null) return merged;
+                // The record expired in the meantime.
+            } catch (VersionMismatchException e) {
+                // Another node updated it first.
+            }
+        }
+        throw new IOException("Too much contention for " + key);
+    }
+
+    /// Mostly empty filters compress very well, so they are deflated before the Base64 encoding.
+    private static @Nonnull String encodeFilter(@Nonnull long[] words) {
+        ByteBuffer bytes = ByteBuffer.allocate(words.length * 8);
+        bytes.asLongBuffer().put(words);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes.array());
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) output.write(buffer, 0, deflater.deflate(buffer));
+            return Base64.getEncoder().encodeToString(output.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static @Nonnull long[] decodeFilter(@Nonnull String value, int wordCount) throws IOException {
+        byte[] bytes = new byte[wordCount * 8];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.getDecoder().decode(value));
+            int length = 0;
+            while (length < bytes.length && !inflater.finished() && !inflater.needsInput()) {
+                length += inflater.inflate(bytes, length, bytes.length - length);
+            }
+            if (length != bytes.length || !inflater.finished()) {
+                throw new IOException("Stored ended session filter has the wrong size");
+            }
+        } catch (IllegalArgumentException | DataFormatException e) {
+            throw new IOException("Invalid stored ended session filter", e);
+        } finally {
+            inflater.end();
+        }
+        long[] words = new long[wordCount];
+        ByteBuffer.wrap(bytes).asLongBuffer().get(words);
+        return words;
+    }
+
+    private static @Nonnull byte[] digest(@Nonnull String idpSessionId) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(idpSessionId.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// A Bloom filter whose elements disappear after at least `retentionMillis`, for EndedSessions.
+///
+/// It consists of BUCKETS ordinary Bloom filters. Time is divided into slots of retentionMillis / (BUCKETS - 1), and
+/// each slot adds to its own bucket (slot modulo BUCKETS). A bucket is cleared when it is reused BUCKETS slots later,
+/// so an element lives between retentionMillis and retentionMillis * BUCKETS / (BUCKETS - 1). mightContain() checks all
+/// buckets.
+///
+/// Elements are 32-byte digests (SHA-256), which are already uniformly distributed, so the bit positions are derived
+/// from them directly by double hashing. Safe to use from multiple threads.
+///
+/// Filters with the same size and retention can be combined bucket by bucket: takeChanges() returns the bits of one
+/// slot, and merge() adds them to another filter. EndedSessions uses that to share filters between IdP nodes.
+final class ExpiringBloomFilter {
+
+    static final int BUCKETS = 4;
+
+    private static final int HASHES = 4;
+
+    private static final class Bucket {
+        final @Nonnull AtomicLongArray bits;
+
+        /// The time slot this bucket currently belongs to. Guarded by this.
+        long slot = -1;
+
+        /// True if add() changed the bits since the last takeChanges(). Guarded by this.
+        boolean changed;
+
+        Bucket(int bitCount) {
+            bits = new AtomicLongArray(bitCount / 64);
+        }
+    }
+
+    private final long slotMillis;
+
+    private final int bitMask;
+
+    private final @Nonnull Bucket[] buckets = new Bucket[BUCKETS];
+
+    /// `bitsPerBucket` must be a power of two, at least 64.
+    ExpiringBloomFilter(int bitsPerBucket, long retentionMillis) {
+        this.slotMillis = Math.max(1, retentionMillis / (BUCKETS - 1));
+        this.bitMask = bitsPerBucket - 1;
+        for (int i = 0; i < BUCKETS; i++) buckets[i] = new Bucket(bitsPerBucket);
+    }
+
+    long slotMillis() {
+        return slotMillis;
+    }
+
+    long currentSlot() {
+        return System.currentTimeMillis() / slotMillis;
+    }
+
+    void add(@Nonnull byte[] digest) {
+        long slot = currentSlot();
+        Bucket bucket = buckets[(int) (slot % BUCKETS)];
+        synchronized (bucket) {
+            if (bucket.slot != slot) {
+                clear(bucket);
+                bucket.slot = slot;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(digest);
+            long h1 = buffer.getLong(0);
+            long h2 = buffer.getLong(8);
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (int) (h1 + i * h2) & bitMask;
+                bucket.bits.getAndAccumulate(bit >>> 6, 1L << bit, (a, b) -> a | b);
+            }
+            bucket.changed = true;
+        }
+    }
+
+    /// Returns a copy of the bits of `slot` if add() changed them since the last call, otherwise null.
+    @Nullable long[] takeChanges(long slot) {
+        Bucket bucket = buckets[(int) (slot % BUCKETS)];
+        synchronized (bucket) {
+            if (bucket.slot != slot || !bucket.changed) return null;
+            bucket.changed = false;
+            long[] words = new long[bucket.bits.length()];
+            for (int i = 0; i < words.length; i++) words[i] = bucket.bits.get(i);
+            return words;
+        }
+    }
+
+    /// Makes the next takeChanges() return the bits of `slot` again, e.g. because sending them somewhere failed.
+    void markChanged(long slot) {
+        Bucket bucket = buckets[(int) (slot % BUCKETS)];
+        synchronized (bucket) {
+            if (bucket.slot == slot) bucket.changed = true;
+        }
+    }
+
+    /// Adds the elements of another filter's bucket, as returned by its takeChanges(), to the bucket of `slot`.
+    void merge(long slot, @Nonnull long[] words) {
+        Bucket bucket = buckets[(int) (slot % BUCKETS)];
+        if (words.length != bucket.bits.length()) throw new IllegalArgumentException("Filter size mismatch");
+        if (slot < 0 || currentSlot() - slot >= BUCKETS) return;
+        synchronized (bucket) {
+            // Never go back to an older slot.
+            if (bucket.slot > slot) return;
+            if (bucket.slot != slot) {
+                clear(bucket);
+                bucket.slot = slot;
+            }
+            for (int i = 0; i < words.length; i++) {
+                if (words[i] != 0) bucket.bits.getAndAccumulate(i, words[i], (a, b) -> a | b);
+            }
+        }
+    }
+
+    boolean mightContain(@Nonnull byte[] digest) {
+        long currentSlot = currentSlot();
+        ByteBuffer buffer = ByteBuffer.wrap(digest);
+        long h1 = buffer.getLong(0);
+        long h2 = buffer.getLong(8);
+        for (Bucket bucket : buckets) {
+            long slot;
+            synchronized (bucket) {
+                slot = bucket.slot;
+            }
+            // Unused, or so old that add() will clear it the next time.
+            if (slot < 0 || currentSlot - slot >= BUCKETS) continue;
+            boolean all = true;
+            for (int i = 0; i < HASHES && all; i++) {
+                int bit = (int) (h1 + i * h2) & bitMask;
+                all = (bucket.bits.get(bit >>> 6) & (1L << bit)) != 0;
+            }
+            if (all) return true;
+        }
+        return false;
+    }
+
+    private static void clear(@Nonnull Bucket bucket) {
+        for (int i = 0; i < bucket.bits.length(); i++) bucket.bits.set(i, 0);
+    }
+}
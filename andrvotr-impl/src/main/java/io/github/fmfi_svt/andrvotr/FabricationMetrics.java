@@ -0,0 +1,155 @@
+package io.github.fmfi_svt.andrvotr;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/// Latency and outcome metrics of andrvotr/fabricate, registered in the IdP's MetricRegistry.
+///
+/// The IdP shows them together with its own metrics, e.g. in the "admin/metrics" flow. All names start with
+/// "andrvotr.".
+///
+/// Recording must be cheap, because it happens on every request. Timers and histograms use Log2Reservoir, and dynamic
+/// counters (per connection, per error) are created once and then found with plain map lookups, so the success path
+/// does not allocate anything.
+public final class FabricationMetrics extends AbstractInitializableComponent {
+
+    /// Parts of a fabricate request which are timed separately.
+    public enum Phase {
+        /// Parsing the parameters and checking the API key.
+        API_KEY,
+        /// Checking the Host header and decrypting the authority token.
+        TOKEN,
+        /// The nested "SAML2/Redirect/SSO" request, as seen by HttpController. Includes waiting for a pooled
+        /// connection.
+        NESTED,
+        /// The "SAML2/Redirect/SSO" flow itself, as seen by FabricationWebflowListener. The difference to NESTED is
+        /// the connection and transport overhead.
+        FLOW,
+        /// Writing the SAML response back to the front service.
+        RESPOND,
+    }
+
+    /// Front entity IDs are checked before any of these counters are created, but back entity IDs and error messages
+    /// are not. This limit keeps a misbehaving front service from filling the registry.
+    private static final int MAX_DYNAMIC_COUNTERS = 1000;
+
+    private static final String PREFIX = "andrvotr.";
+
+    private MetricRegistry metricRegistry;
+
+    private final @Nonnull Timer[] phaseTimers = new Timer[Phase.values().length];
+
+    private final @Nonnull Histogram responseSize = new Histogram(new Log2Reservoir());
+
+    private final @Nonnull Counter successes = new Counter();
+
+    private final @Nonnull Counter otherCounters = new Counter();
+
+    /// front ID -> back ID -> counter. Nested maps, so that a lookup doesn't need to build a composite key.
+    private final @Nonnull Map<String, Map<String, Counter>> allowedConnections = new ConcurrentHashMap<>();
+
+    private final @Nonnull Map<String, Map<String, Counter>> forbiddenConnections = new ConcurrentHashMap<>();
+
+    private final @Nonnull Map<String, Counter> errors = new ConcurrentHashMap<>();
+
+    private final @Nonnull AtomicInteger dynamicCounters = new AtomicInteger();
+
+    public void setMetricRegistry(@Nonnull MetricRegistry registry) {
+        checkSetterPreconditions();
+        metricRegistry = Constraint.isNotNull(registry, "MetricRegistry cannot be null");
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (null == metricRegistry) {
+            throw new ComponentInitializationException("MetricRegistry cannot be null");
+        }
+
+        for (Phase phase : Phase.values()) {
+            phaseTimers[phase.ordinal()] = new Timer(new Log2Reservoir());
+            register("fabricate.latency." + phase.name().toLowerCase(Locale.ROOT), phaseTimers[phase.ordinal()]);
+        }
+        register("fabricate.nestedResponseSize", responseSize);
+        register("fabricate.success", successes);
+        register("fabricate.untrackedEvents", otherCounters);
+    }
+
+    private void register(@Nonnull String name, @Nonnull Metric metric) {
+        // Replace metrics left over from a previous instance, e.g. after a reload of the Spring context.
+        metricRegistry.remove(PREFIX + name);
+        metricRegistry.register(PREFIX + name, metric);
+    }
+
+    public void registerGauge(@Nonnull String name, @Nonnull Gauge<?> gauge) {
+        register(name, gauge);
+    }
+
+    /// Records the time since `startNanos` (from System.nanoTime()) and returns the current time, which can be used as
+    /// the start of the next phase.
+    public long recordPhase(@Nonnull Phase phase, long startNanos) {
+        long now = System.nanoTime();
+        phaseTimers[phase.ordinal()].update(now - startNanos, TimeUnit.NANOSECONDS);
+        return now;
+    }
+
+    public void recordResponseSize(int bytes) {
+        responseSize.update(bytes);
+    }
+
+    public void recordSuccess() {
+        successes.inc();
+    }
+
+    /// Counts an error response. The message is shortened to its fixed part (before the first ':' or ','), so that
+    /// e.g. all "Nested request failed: status=..." errors are counted together.
+    public void recordError(int status, @Nonnull String message) {
+        int end = message.length();
+        int colon = message.indexOf(':');
+        int comma = message.indexOf(',');
+        if (colon >= 0) end = Math.min(end, colon);
+        if (comma >= 0) end = Math.min(end, comma);
+        String key = status + "." + message.substring(0, end).trim();
+
+        Counter counter = errors.get(key);
+        if (counter == null) counter = createCounter(errors, key, "fabricate.errors." + key);
+        counter.inc();
+    }
+
+    /// Counts a {front, back} pair checked by FabricationWebflowListener.
+    public void recordConnection(@Nonnull String frontID, @Nonnull String backID, boolean allowed) {
+        Map<String, Map<String, Counter>> connections = allowed ? allowedConnections : forbiddenConnections;
+        Map<String, Counter> byBack = connections.get(frontID);
+        Counter counter = byBack != null ? byBack.get(backID) : null;
+        if (counter == null) {
+            byBack = connections.computeIfAbsent(frontID, k -> new ConcurrentHashMap<>());
+            String name = (allowed ? "connections.allowed." : "connections.forbidden.") + frontID + ">>" + backID;
+            counter = createCounter(byBack, backID, name);
+        }
+        counter.inc();
+    }
+
+    private @Nonnull Counter createCounter(
+            @Nonnull Map<String, Counter> map, @Nonnull String key, @Nonnull String name) {
+        // Not exact under concurrency, but close enough for a safety limit.
+        if (dynamicCounters.get() >= MAX_DYNAMIC_COUNTERS) return otherCounters;
+        return map.computeIfAbsent(key, k -> {
+            dynamicCounters.incrementAndGet();
+            return metricRegistry.counter(PREFIX + name);
+        });
+    }
+}
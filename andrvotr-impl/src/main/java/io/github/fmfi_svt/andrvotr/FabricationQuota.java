@@ -0,0 +1,7 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.time.Duration;
+import javax.annotation.Nonnull;
+
+/// At most `limit` fabrications per `window`, for one front service. Configured in andrvotr.fabricationQuotas.
+record FabricationQuota(int limit, @Nonnull Duration window) {}
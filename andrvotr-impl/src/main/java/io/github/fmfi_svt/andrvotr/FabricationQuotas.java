@@ -0,0 +1,169 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+
+/// Enforces andrvotr.fabricationQuotas: at most N fabrications per front service per time window, across all nodes of
+/// an IdP cluster.
+///
+/// Windows are fixed, aligned to the epoch, so all nodes agree on them without talking to each other (as long as their
+/// clocks are roughly in sync). The number of permits used in the current window is stored in the StorageService. To
+/// avoid a storage round trip on every request, each node takes permits in leases of leaseSize at a time and hands
+/// them out locally. Permits a node leased but didn't use are lost at the end of the window, so with many nodes the
+/// effective limit can be a little lower than configured.
+///
+/// If the StorageService fails, requests are allowed. A broken storage should not take fabrication down with it.
+public final class FabricationQuotas extends AbstractInitializableComponent {
+
+    private static final String STORAGE_CONTEXT = "andrvotr.fabricationQuota";
+
+    /// Optimistic locking retries before giving up on one lease. Only reached under heavy contention.
+    private static final int MAX_ATTEMPTS = 10;
+
+    /// Locally leased permits of one front service. Guarded by its own monitor.
+    private static final class Lease {
+        long window = -1;
+
+        int remaining;
+
+        /// The storage had nothing more to give in this window, so don't ask it again until the window ends.
+        boolean exhausted;
+    }
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(FabricationQuotas.class);
+
+    private StorageService storageService;
+
+    private Config config;
+
+    private int leaseSize = 10;
+
+    /// Only front services with a valid API key get here, so the size is bounded by the configuration.
+    private final @Nonnull Map<String, Lease> leases = new ConcurrentHashMap<>();
+
+    public void setStorageService(@Nonnull StorageService service) {
+        checkSetterPreconditions();
+        storageService = Constraint.isNotNull(service, "StorageService cannot be null");
+    }
+
+    public void setConfig(@Nonnull Config newConfig) {
+        checkSetterPreconditions();
+        config = Constraint.isNotNull(newConfig, "Config cannot be null");
+    }
+
+    public void setLeaseSize(int size) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, size, "leaseSize must be positive");
+        leaseSize = size;
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (null == storageService) {
+            throw new ComponentInitializationException("StorageService cannot be null");
+        }
+        if (null == config) {
+            throw new ComponentInitializationException("Config cannot be null");
+        }
+    }
+
+    /// Takes `permits` permits from the front service's quota. Returns null if that succeeded (or if it has no quota),
+    /// or the time until the current window ends if the quota is exhausted.
+    public @Nullable Duration acquire(@Nonnull String frontID, int permits) {
+        FabricationQuota quota = config.getFabricationQuota(frontID);
+        if (quota == null) return null;
+
+        long windowMillis = quota.window().toMillis();
+        long now = System.currentTimeMillis();
+        long window = now / windowMillis;
+        long windowEnd = (window + 1) * windowMillis;
+
+        Lease lease = leases.computeIfAbsent(frontID, k -> new Lease());
+        // Requests of other front services are not blocked while this one waits for the storage.
+        synchronized (lease) {
+            if (lease.window != window) {
+                lease.window = window;
+                lease.remaining = 0;
+                lease.exhausted = false;
+            }
+            while (lease.remaining < permits) {
+                if (lease.exhausted) return Duration.ofMillis(windowEnd - now);
+                int wanted = Math.max(leaseSize, permits - lease.remaining);
+                int granted;
+                try {
+                    // Keep the record one extra window, so that nodes with a slightly late clock still find it.
+                    String key = storageKey(frontID, quota, window);
+                    granted = leaseFromStorage(key, quota.limit(), wanted, windowEnd + windowMillis);
+                } catch (IOException e) {
+                    log.warn("andrvotr fabrication quota storage failed, allowing request from {}", frontID, e);
+                    granted = wanted;
+                }
+                if (granted < wanted) lease.exhausted = true;
+                lease.remaining += granted;
+            }
+            lease.remaining -= permits;
+            return null;
+        }
+    }
+
+    /// Increments the stored counter by up to `wanted` without exceeding `limit`. Returns how much it was incremented.
+    private int leaseFromStorage(@Nonnull String key, int limit, int wanted, long expiration) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            StorageRecord<?> record = storageService.read(STORAGE_CONTEXT, key);
+            if (record == null) {
+                int granted = Math.min(wanted, limit);
+                if (storageService.create(STORAGE_CONTEXT, key, Integer.toString(granted), expiration)) return granted;
+                // Another node created it first.
+                continue;
+            }
+
+            int used;
+            try {
+                used = Integer.parseInt(record.getValue());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid stored value " + record.getValue(), e);
+            }
+            int granted = Math.max(0, Math.min(wanted, limit - used));
+            if (granted == 0) return 0;
+            try {
+                Long version = storageService.updateWithVersion(
+                        record.getVersion(), STORAGE_CONTEXT, key, Integer.toString(used + granted), expiration);
+                if (version != null) return granted;
+                // The record expired in the meantime.
+            } catch (VersionMismatchException e) {
+                // Another node updated it first.
+            }
+        }
+        throw new IOException("Too much contention for " + key);
+    }
+
+    /// The front ID is hashed because StorageService keys have a limited length. The window length is included so
+    /// that a changed quota doesn't reuse counters of the old one.
+    private static @Nonnull String storageKey(@Nonnull String frontID, @Nonnull FabricationQuota quota, long window) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(frontID.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest) + "." + quota.window().toMillis() + "." + window;
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import net.shibboleth.shared.security.DataSealer;
+import net.shibboleth.shared.security.DataSealerException;
+import org.slf4j.Logger;
+
+/// Creates and checks the internal fabrication tokens sent by HttpController to FabricationWebflowListener.
+///
+/// A fabrication token certifies to the nested request's receiver that our HttpController sent it. The token is sealed
+/// with the IdP's DataSealer, so it is also accepted when the nested request ends up on another node of an IdP cluster.
+///
+/// Sealing a new token for every request and unsealing it again would be wasteful, because all tokens are the same
+/// anyway. So the sender reuses one token until half of its lifetime is spent, and the receiver remembers which tokens
+/// it has already verified until they expire. The expiration is part of the sealed value, so the receiver knows it.
+public final class FabricationTokens extends AbstractInitializableComponent {
+
+    /// The exact length doesn't really matter.
+    private static final Duration LIFETIME = Duration.ofMinutes(10);
+
+    /// Normally there is one current token per cluster node, plus the previous one during renewal.
+    private static final int MAX_VERIFIED_TOKENS = 64;
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(FabricationTokens.class);
+
+    private DataSealer dataSealer;
+
+    private volatile CurrentToken currentToken;
+
+    private final @Nonnull Map<String, Instant> verifiedTokens = new ConcurrentHashMap<>();
+
+    private record CurrentToken(@Nonnull String value, @Nonnull Instant renewAfter) {}
+
+    public void setDataSealer(@Nonnull DataSealer sealer) {
+        checkSetterPreconditions();
+        dataSealer = Constraint.isNotNull(sealer, "DataSealer cannot be null");
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (null == dataSealer) {
+            throw new ComponentInitializationException("DataSealer cannot be null");
+        }
+    }
+
+    /// Returns a fabrication token, creating a new one only if the previous one is getting old.
+    public @Nonnull String getToken() throws DataSealerException {
+        Instant now = Instant.now();
+        CurrentToken token = currentToken;
+        if (token != null && now.isBefore(token.renewAfter())) return token.value();
+
+        synchronized (this) {
+            token = currentToken;
+            if (token != null && now.isBefore(token.renewAfter())) return token.value();
+
+            Instant expiration = now.plus(LIFETIME);
+            String plainToken = Constants.ANDRVOTR_FABRICATION_TOKEN_VALUE + "\n" + expiration.toEpochMilli();
+            String value = dataSealer.wrap(plainToken, expiration);
+            log.debug("created new fabrication token, expiration = {}", expiration);
+            currentToken = new CurrentToken(value, now.plus(LIFETIME.dividedBy(2)));
+            return value;
+        }
+    }
+
+    /// Checks whether the token was created by getToken() on this or another node, and is not expired.
+    public boolean isValid(@Nonnull String token) {
+        Instant now = Instant.now();
+
+        Instant knownExpiration = verifiedTokens.get(token);
+        if (knownExpiration != null) {
+            if (now.isBefore(knownExpiration)) return true;
+            verifiedTokens.remove(token, knownExpiration);
+        }
+
+        String content;
+        try {
+            content = dataSealer.unwrap(token);
+        } catch (DataSealerException e) {
+            log.debug("fabrication token unwrap failed", e);
+            return false;
+        }
+
+        // Tokens created by older versions contain just the value, without the expiration. DataSealer.unwrap already
+        // checked that they are not expired, but we can't remember them.
+        if (Constants.ANDRVOTR_FABRICATION_TOKEN_VALUE.equals(content)) return true;
+
+        String prefix = Constants.ANDRVOTR_FABRICATION_TOKEN_VALUE + "\n";
+        if (!content.startsWith(prefix)) return false;
+
+        Instant expiration;
+        try {
+            expiration = Instant.ofEpochMilli(Long.parseLong(content.substring(prefix.length())));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        if (verifiedTokens.size() >= MAX_VERIFIED_TOKENS) {
+            verifiedTokens.values().removeIf(value -> !now.isBefore(value));
+            if (verifiedTokens.size() >= MAX_VERIFIED_TOKENS) verifiedTokens.clear();
+        }
+        verifiedTokens.put(token, expiration);
+        return true;
+    }
+}
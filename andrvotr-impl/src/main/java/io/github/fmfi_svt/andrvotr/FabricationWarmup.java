@@ -0,0 +1,167 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import net.shibboleth.shared.security.DataSealer;
+import net.shibboleth.shared.security.DataSealerException;
+import org.apache.hc.client5.http.classic.HttpClient;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.slf4j.Logger;
+
+/// Warms up the fabricate path after startup, so that the first real fabrications after a deploy are not slow.
+///
+/// It runs a few DataSealer wrap and unwrap cycles (which loads the keystore and JIT-compiles the crypto), and then, in
+/// HTTP nested request mode, sends synthetic nested requests to "SAML2/Redirect/SSO". They have a valid fabrication
+/// token, so FabricationWebflowListener handles them like real ones, but no SAMLRequest and no cookies, so the flow
+/// just fails in "DecodeMessage" and nobody gets an assertion. They are sent from `connections` threads in parallel,
+/// so the same number of connections is left open in the HttpClient pool.
+///
+/// HttpController is initialized before the servlet container starts listening, so the first request is retried until
+/// the server answers.
+final class FabricationWarmup implements Runnable {
+
+    private static final int SEAL_CYCLES = 200;
+
+    private static final Duration STARTUP_TIMEOUT = Duration.ofMinutes(2);
+
+    private static final Duration STARTUP_RETRY_INTERVAL = Duration.ofSeconds(1);
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(FabricationWarmup.class);
+
+    private final @Nonnull DataSealer dataSealer;
+
+    private final @Nonnull FabricationTokens fabricationTokens;
+
+    /// Null if nested requests don't use HTTP.
+    private final @Nullable HttpClient httpClient;
+
+    private final @Nullable HttpHost localAddress;
+
+    private final @Nonnull String targetUrl;
+
+    private final int connections;
+
+    private final int requests;
+
+    private volatile boolean done;
+
+    FabricationWarmup(
+            @Nonnull DataSealer dataSealer,
+            @Nonnull FabricationTokens fabricationTokens,
+            @Nullable HttpClient httpClient,
+            @Nullable HttpHost localAddress,
+            @Nonnull String host,
+            int connections,
+            int requests) {
+        this.dataSealer = dataSealer;
+        this.fabricationTokens = fabricationTokens;
+        this.httpClient = httpClient;
+        this.localAddress = localAddress;
+        this.targetUrl = "https://" + host + "/idp/profile/SAML2/Redirect/SSO";
+        this.connections = connections;
+        this.requests = requests;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        log.info("andrvotr warm-up started");
+        try {
+            warmUpDataSealer();
+            if (httpClient != null && waitForServer()) warmUpNestedRequests();
+            log.info("andrvotr warm-up finished in {} ms", (System.nanoTime() - start) / 1_000_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.info("andrvotr warm-up interrupted");
+        } catch (DataSealerException | RuntimeException e) {
+            log.warn("andrvotr warm-up failed, continuing without it", e);
+        } finally {
+            done = true;
+        }
+    }
+
+    private void warmUpDataSealer() throws DataSealerException {
+        Instant expiration = Instant.now().plus(Duration.ofMinutes(1));
+        for (int i = 0; i < SEAL_CYCLES; i++) {
+            dataSealer.unwrap(dataSealer.wrap("andrvotr-warmup-" + i, expiration));
+        }
+        String token = fabricationTokens.getToken();
+        if (!fabricationTokens.isValid(token)) throw new IllegalStateException("Fabrication token is not valid");
+        log.info("andrvotr warm-up: {} DataSealer cycles done", SEAL_CYCLES);
+    }
+
+    /// Returns false if the server did not start listening in time.
+    private boolean waitForServer() throws InterruptedException, DataSealerException {
+        long deadline = System.nanoTime() + STARTUP_TIMEOUT.toNanos();
+        while (true) {
+            try {
+                sendSyntheticRequest();
+                return true;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    log.warn(
+                            "andrvotr warm-up: {} did not answer in {}, skipping nested requests",
+                            targetUrl,
+                            STARTUP_TIMEOUT,
+                            e);
+                    return false;
+                }
+                log.debug("andrvotr warm-up: {} is not available yet", targetUrl, e);
+                Thread.sleep(STARTUP_RETRY_INTERVAL.toMillis());
+            }
+        }
+    }
+
+    private void warmUpNestedRequests() throws InterruptedException {
+        AtomicInteger remaining = new AtomicInteger(requests);
+        ExecutorService executor = Executors.newFixedThreadPool(connections, runnable -> {
+            Thread thread = new Thread(runnable, "andrvotr-warmup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                futures.add(executor.submit(() -> {
+                    while (remaining.getAndDecrement() > 0) sendSyntheticRequest();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+            log.info("andrvotr warm-up: {} nested requests done over {} connections", requests, connections);
+        } catch (ExecutionException e) {
+            log.warn("andrvotr warm-up: nested request failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private void sendSyntheticRequest() throws IOException, DataSealerException {
+        HttpGet request = new HttpGet(targetUrl);
+        request.addHeader(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_TOKEN, fabricationTokens.getToken());
+        // The response is an error page. All we want is the connection, which goes back to the pool after this.
+        HttpController.executeNestedRequest(httpClient, localAddress, request, response -> {
+            EntityUtils.consume(response.getEntity());
+            return null;
+        });
+    }
+}
@@ -3,14 +3,16 @@ package io.github.fmfi_svt.andrvotr;
 import com.google.common.base.Strings;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.context.SessionContext;
 import net.shibboleth.profile.context.RelyingPartyContext;
 import net.shibboleth.shared.component.AbstractInitializableComponent;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
 import net.shibboleth.shared.primitive.LoggerFactory;
-import net.shibboleth.shared.security.DataSealer;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.springframework.webflow.definition.StateDefinition;
@@ -25,9 +27,15 @@ import org.springframework.webflow.execution.RequestContext;
 ///
 /// - On start: read the Andrvotr-Internal-Fabrication-Token request header and check its value.
 /// - On success of the "DecodeMessage" state: read the Andrvotr-Internal-Fabrication-Front request header and check if
-///   this {front SP, back SP} pair is an allowed connection.
+///   this {front SP, back SP} pair is an allowed connection. HttpController already checked the same pair using the
+///   SAMLRequest Issuer (see SamlRequestIssuer), so this only matters if that check and the flow disagree.
 /// - On every state transition: log it in the Andrvotr-Internal-Fabrication-Trace response header. This is used in
 ///   HttpController to check that this listener ran correctly, and returned to the client for troubleshooting purposes.
+/// - After the allowed connection check and on entering "HandleOutboundMessage": put the back entity ID and the
+///   principal name in the Andrvotr-Internal-Fabrication-Back and -Principal response headers, for AuditLog.
+/// - On entering any state before "HandleOutboundMessage": if the time in the Andrvotr-Internal-Fabrication-Deadline
+///   request header (milliseconds since the request was received) has run out, stop the flow. Nobody would read the
+///   response anyway.
 ///
 /// We rely on the assumption that "SAML2/Redirect/SSO" contains states named "DecodeMessage", "HandleOutboundMessage",
 /// and "end". But this is technically an internal implementation detail of Shibboleth which could break in the future.
@@ -41,11 +49,13 @@ public final class FabricationWebflowListener extends AbstractInitializableCompo
 
     private Config config;
 
-    private DataSealer dataSealer;
+    private FabricationTokens fabricationTokens;
 
-    public void setDataSealer(@Nonnull DataSealer sealer) {
+    private FabricationMetrics metrics;
+
+    public void setFabricationTokens(@Nonnull FabricationTokens tokens) {
         checkSetterPreconditions();
-        dataSealer = Constraint.isNotNull(sealer, "DataSealer cannot be null");
+        fabricationTokens = Constraint.isNotNull(tokens, "FabricationTokens cannot be null");
     }
 
     public void setConfig(@Nonnull Config newConfig) {
@@ -53,6 +63,11 @@ public final class FabricationWebflowListener extends AbstractInitializableCompo
         config = Constraint.isNotNull(newConfig, "Config cannot be null");
     }
 
+    public void setMetrics(@Nonnull FabricationMetrics newMetrics) {
+        checkSetterPreconditions();
+        metrics = Constraint.isNotNull(newMetrics, "FabricationMetrics cannot be null");
+    }
+
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -60,8 +75,11 @@ public final class FabricationWebflowListener extends AbstractInitializableCompo
         if (null == config) {
             throw new ComponentInitializationException("Config cannot be null");
         }
-        if (null == dataSealer) {
-            throw new ComponentInitializationException("DataSealer cannot be null");
+        if (null == fabricationTokens) {
+            throw new ComponentInitializationException("FabricationTokens cannot be null");
+        }
+        if (null == metrics) {
+            throw new ComponentInitializationException("FabricationMetrics cannot be null");
         }
     }
 
@@ -80,21 +98,27 @@ public final class FabricationWebflowListener extends AbstractInitializableCompo
         // Check the header value to verify it is really sent by our HttpController, not a random user. (Allowing it
         // wouldn't be a huge problem, because this listener doesn't reveal any sensitive data except some coarse debug
         // info in Andrvotr-Internal-Fabrication-Trace. But just in case.)
-        try {
-            String content = dataSealer.unwrap(token);
-            if (!Constants.ANDRVOTR_FABRICATION_TOKEN_VALUE.equals(content)) {
-                throw new Exception("wrong unwrapped value");
-            }
-        } catch (Exception e) {
+        if (!fabricationTokens.isValid(token)) {
             // It would be nicer to return HTTP status 400 instead of 500, but that's hard to do from this method. This
             // error is unlikely to happen in practice. RuntimeException is good enough.
-            log.warn("invalid Andrvotr-Internal-Fabrication-Token header - rejecting request", e);
+            log.warn("invalid Andrvotr-Internal-Fabrication-Token header - rejecting request");
             throw new RuntimeException("Andrvotr fabricate failed - invalid fabrication token");
         }
 
         log.info("started {} as a nested request inside andrvotr/fabricate", request.getRequestURI());
-        context.getRequestScope().put(Constants.ANDRVOTR_FABRICATION_TOKEN_OK, new Object());
+        // The value is the start time, used for the "flow" latency metric.
+        context.getRequestScope().put(Constants.ANDRVOTR_FABRICATION_TOKEN_OK, System.nanoTime());
         addTrace(context, Constants.TRACE_START);
+
+        String deadline = request.getHeader(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_DEADLINE);
+        if (deadline != null) {
+            try {
+                long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(deadline));
+                context.getRequestScope().put(Constants.ANDRVOTR_FABRICATION_DEADLINE, deadlineNanos);
+            } catch (NumberFormatException e) {
+                log.warn("invalid Andrvotr-Internal-Fabrication-Deadline header - ignoring it");
+            }
+        }
     }
 
     @Override
@@ -124,12 +148,15 @@ public final class FabricationWebflowListener extends AbstractInitializableCompo
                     || Strings.isNullOrEmpty(backID)
                     || !config.isAllowedConnection(frontID, backID)) {
                 log.error("forbidden andrvotr connection: front={} back={}", frontID, backID);
+                if (frontID != null && backID != null) metrics.recordConnection(frontID, backID, false);
                 addTrace(context, Constants.TRACE_ALLOWED_CONNECTION_CHECK_FAILURE);
                 throw new RuntimeException("Andrvotr fabricate failed - this connection is not allowed");
             }
 
             log.info("allowed andrvotr connection: front={} back={}", frontID, backID);
+            metrics.recordConnection(frontID, backID, true);
             addTrace(context, Constants.TRACE_ALLOWED_CONNECTION_CHECK_SUCCESS);
+            addHeader(context, Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_BACK, backID);
         }
     }
 
@@ -144,6 +171,38 @@ public final class FabricationWebflowListener extends AbstractInitializableCompo
 
         // Save all entered states in a response header for troubleshooting.
         addTrace(context, state.getId());
+
+        // Stop before doing more work if the client has already given up. Once "HandleOutboundMessage" is reached, the
+        // work is done and sending the response is cheap.
+        Long deadline = context.getRequestScope().getLong(Constants.ANDRVOTR_FABRICATION_DEADLINE);
+        if (deadline != null
+                && System.nanoTime() - deadline >= 0
+                && !Constants.STATE_HANDLE_OUTBOUND_MESSAGE.equals(state.getId())) {
+            log.warn("andrvotr nested request deadline exceeded before state {}", state.getId());
+            addTrace(context, Constants.TRACE_DEADLINE_EXCEEDED);
+            throw new RuntimeException("Andrvotr fabricate failed - deadline exceeded");
+        }
+
+        // The response is about to be sent. Everything before this was the flow's own work.
+        if (Constants.STATE_HANDLE_OUTBOUND_MESSAGE.equals(state.getId())) {
+            Long start = context.getRequestScope().getLong(Constants.ANDRVOTR_FABRICATION_TOKEN_OK);
+            metrics.recordPhase(FabricationMetrics.Phase.FLOW, start);
+
+            ProfileRequestContext prc = new WebflowRequestContextProfileRequestContextLookup().apply(context);
+            SessionContext sessionContext = prc != null ? prc.getSubcontext(SessionContext.class) : null;
+            IdPSession idpSession = sessionContext != null ? sessionContext.getIdPSession() : null;
+            if (idpSession != null) {
+                String principal = idpSession.getPrincipalName();
+                addHeader(context, Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_PRINCIPAL, principal);
+            }
+        }
+    }
+
+    private void addHeader(RequestContext context, String name, String value) {
+        HttpServletResponse response =
+                (HttpServletResponse) context.getExternalContext().getNativeResponse();
+
+        if (!response.isCommitted()) response.addHeader(name, value);
     }
 
     private void addTrace(RequestContext context, String value) {
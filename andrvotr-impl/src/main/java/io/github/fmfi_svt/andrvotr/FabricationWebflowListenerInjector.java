@@ -10,7 +10,7 @@ import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.beans.factory.config.RuntimeBeanReference;
 
-/// Injects our custom listener to webflow-config.xml.
+/// Injects our custom listeners to webflow-config.xml.
 ///
 /// java-identity-provider/idp-conf-impl/src/main/resources/net/shibboleth/idp/conf/webflow-config.xml
 /// contains the following definition:
@@ -24,9 +24,10 @@ import org.springframework.beans.factory.config.RuntimeBeanReference;
 ///         </webflow:flow-execution-listeners>
 ///     </webflow:flow-executor>
 ///
-/// Our goal is to inject another listener:
+/// Our goal is to inject more listeners:
 ///
 ///     <webflow:listener ref="andrvotrFabricationWebflowListener" criteria="SAML2/Redirect/SSO" />
+///     <webflow:listener ref="andrvotrLogoutWebflowListener" criteria="Logout,SAML2/Redirect/SLO,..." />
 public final class FabricationWebflowListenerInjector extends AbstractInitializableComponent
         implements BeanFactoryPostProcessor {
 
@@ -35,11 +36,17 @@ public final class FabricationWebflowListenerInjector extends AbstractInitializa
     /// Comma-separated list of flow IDs (defined in webflow-config.xml) where our listener should run.
     private static final String CRITERIA = "SAML2/Redirect/SSO";
 
+    private static final String LOGOUT_LISTENER_BEAN_REF = "andrvotrLogoutWebflowListener";
+
+    /// The flows which end IdP sessions.
+    private static final String LOGOUT_CRITERIA =
+            "Logout,SAML2/Redirect/SLO,SAML2/POST/SLO,SAML2/POST-SimpleSign/SLO,SAML2/SOAP/SLO";
+
     private final @Nonnull Logger log = LoggerFactory.getLogger(FabricationWebflowListenerInjector.class);
 
     @Override
     public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
-        log.info("Adding {} to flowExecutor", LISTENER_BEAN_REF);
+        log.info("Adding {} and {} to flowExecutor", LISTENER_BEAN_REF, LOGOUT_LISTENER_BEAN_REF);
 
         // This code relies on a few internal implementation details of Spring Webflow which could break in the future.
         // Unfortunately, BeanFactoryPostProcessor does not operate on the original XML tree with `<webflow:...>` tags,
@@ -62,6 +69,7 @@ public final class FabricationWebflowListenerInjector extends AbstractInitializa
                 listenerLoader.getPropertyValues().get("listeners");
         log.debug("Listeners before: {}", listeners);
         listeners.put(new RuntimeBeanReference(LISTENER_BEAN_REF), CRITERIA);
+        listeners.put(new RuntimeBeanReference(LOGOUT_LISTENER_BEAN_REF), LOGOUT_CRITERIA);
         log.debug("Listeners after: {}", listeners);
     }
 }
@@ -1,18 +1,45 @@
 package io.github.fmfi_svt.andrvotr;
 
 import com.google.common.base.Strings;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import net.shibboleth.shared.component.AbstractInitializableComponent;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
@@ -22,10 +49,16 @@ import net.shibboleth.shared.security.DataSealer;
 import net.shibboleth.shared.security.DataSealerException;
 import org.apache.hc.client5.http.classic.HttpClient;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.core5.http.Header;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.util.Timeout;
+import org.opensaml.storage.StorageService;
 import org.slf4j.Logger;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 
@@ -33,21 +66,135 @@ import org.springframework.web.bind.annotation.RequestMapping;
 @RequestMapping("/andrvotr")
 public final class HttpController extends AbstractInitializableComponent {
 
+    /// How the nested "SAML2/Redirect/SSO" request is sent.
+    public enum NestedRequestMode {
+        /// A real HTTP request to our own public hostname, sent with the configured HttpClient.
+        HTTP,
+        /// The flow runs in the current thread, without any network traffic. See InProcessNestedRequestSender.
+        IN_PROCESS,
+    }
+
+    /// Parameters of a fabricate request which passed all checks that don't depend on the target URL. `startNanos` is
+    /// when the request arrived, for the audit log. `deadlineNanos` is the System.nanoTime() after which the client
+    /// won't wait for the response anymore.
+    record ValidatedRequest(
+            long startNanos,
+            long deadlineNanos,
+            @Nonnull String frontEntityID,
+            @Nonnull String expectedHost,
+            @Nonnull AuthorityToken token,
+            @Nonnull List<String> targetUrls) {}
+
+    /// Outcome of one nested request. `error` is null on success. `response` is null if no nested request was sent.
+    record FabricationResult(int status, @Nullable String error, @Nullable NestedResponse response) {
+        static @Nonnull FabricationResult failure(int status, @Nonnull String error) {
+            return new FabricationResult(status, error, null);
+        }
+    }
+
+    /// SAML responses are usually a few kilobytes. This limit only exists to avoid buffering something unreasonable.
+    private static final int MAX_NESTED_RESPONSE_SIZE = 4 * 1024 * 1024;
+
     private final @Nonnull Logger log = LoggerFactory.getLogger(HttpController.class);
 
     private HttpClient httpClient;
 
+    /// Used only by /login, for requests to back services. Separate from httpClient, which may be configured to skip
+    /// TLS verification for nested requests to the IdP itself.
+    private HttpClient loginHttpClient;
+
     private Config config;
 
     private DataSealer dataSealer;
 
+    private FabricationTokens fabricationTokens;
+
+    private FabricationMetrics metrics;
+
+    private FabricationQuotas quotas;
+
+    private AuditLog auditLog;
+
+    private EndedSessions endedSessions;
+
+    private SessionLivenessCheck sessionLivenessCheck;
+
     private String idpEntityID;
 
+    private @Nonnull NestedRequestMode nestedRequestMode = NestedRequestMode.HTTP;
+
+    private @Nullable StorageService idpSessionStorageService;
+
+    private @Nullable HttpHost nestedRequestLocalAddress;
+
+    private @Nullable String nestedRequestNodeAddressesString;
+
+    /// Servlet container node ID (JSESSIONID suffix) -> address of that node.
+    private @Nonnull Map<String, HttpHost> nestedRequestNodeAddresses = Map.of();
+
+    private final @Nonnull InProcessNestedRequestSender inProcessSender =
+            new InProcessNestedRequestSender(MAX_NESTED_RESPONSE_SIZE);
+
+    private int authorityTokenCacheSize;
+
+    private @Nonnull Duration authorityTokenCacheTtl = Duration.ofSeconds(30);
+
+    private AuthorityTokenCache authorityTokenCache;
+
+    private int coalesceMaxSize;
+
+    private int coalesceMaxBodySize = 256 * 1024;
+
+    private @Nonnull Duration coalesceTimeout = Duration.ofSeconds(30);
+
+    private InFlightFabrications inFlightFabrications;
+
+    private int concurrencyLimitMin = 1;
+
+    private int concurrencyLimitMax;
+
+    private @Nonnull Duration concurrencyLimitLatencyThreshold = Duration.ofSeconds(1);
+
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    private @Nonnull Duration deadlineMax = Duration.ofSeconds(30);
+
+    private int batchMaxSize = 10;
+
+    private int batchParallelism = 4;
+
+    private int batchQueueSize = 100;
+
+    private ExecutorService batchExecutor;
+
+    private boolean asyncEnabled;
+
+    private @Nonnull Duration asyncTimeout = Duration.ofSeconds(30);
+
+    private int asyncThreads = 100;
+
+    private ExecutorService asyncExecutor;
+
+    private final @Nonnull AtomicBoolean asyncUnsupportedWarned = new AtomicBoolean();
+
+    private boolean warmupEnabled;
+
+    private int warmupConnections = 10;
+
+    private int warmupRequests = 100;
+
+    private @Nullable FabricationWarmup warmup;
+
     public void setHttpClient(@Nonnull HttpClient client) {
         checkSetterPreconditions();
         httpClient = Constraint.isNotNull(client, "HttpClient cannot be null");
     }
 
+    public void setLoginHttpClient(@Nonnull HttpClient client) {
+        checkSetterPreconditions();
+        loginHttpClient = Constraint.isNotNull(client, "LoginHttpClient cannot be null");
+    }
+
     public void setConfig(@Nonnull Config newConfig) {
         checkSetterPreconditions();
         config = Constraint.isNotNull(newConfig, "Config cannot be null");
@@ -58,12 +205,191 @@ public final class HttpController extends AbstractInitializableComponent {
         dataSealer = Constraint.isNotNull(sealer, "DataSealer cannot be null");
     }
 
+    public void setFabricationTokens(@Nonnull FabricationTokens tokens) {
+        checkSetterPreconditions();
+        fabricationTokens = Constraint.isNotNull(tokens, "FabricationTokens cannot be null");
+    }
+
+    public void setMetrics(@Nonnull FabricationMetrics newMetrics) {
+        checkSetterPreconditions();
+        metrics = Constraint.isNotNull(newMetrics, "FabricationMetrics cannot be null");
+    }
+
+    public void setFabricationQuotas(@Nonnull FabricationQuotas newQuotas) {
+        checkSetterPreconditions();
+        quotas = Constraint.isNotNull(newQuotas, "FabricationQuotas cannot be null");
+    }
+
+    public void setAuditLog(@Nonnull AuditLog newAuditLog) {
+        checkSetterPreconditions();
+        auditLog = Constraint.isNotNull(newAuditLog, "AuditLog cannot be null");
+    }
+
+    public void setEndedSessions(@Nonnull EndedSessions sessions) {
+        checkSetterPreconditions();
+        endedSessions = Constraint.isNotNull(sessions, "EndedSessions cannot be null");
+    }
+
+    public void setSessionLivenessCheck(@Nonnull SessionLivenessCheck check) {
+        checkSetterPreconditions();
+        sessionLivenessCheck = Constraint.isNotNull(check, "SessionLivenessCheck cannot be null");
+    }
+
     public void setIdpEntityID(@Nonnull String id) {
         checkSetterPreconditions();
         Constraint.isFalse(Strings.isNullOrEmpty(id), "idpEntityId cannot be null or empty");
         idpEntityID = id;
     }
 
+    public void setNestedRequestMode(@Nonnull NestedRequestMode mode) {
+        checkSetterPreconditions();
+        nestedRequestMode = Constraint.isNotNull(mode, "NestedRequestMode cannot be null");
+    }
+
+    /// The IdP session StorageService (idp.session.StorageService). In-process mode requires a server-side one, see
+    /// InProcessNestedRequestSender.
+    public void setIdpSessionStorageService(@Nullable StorageService service) {
+        checkSetterPreconditions();
+        idpSessionStorageService = service;
+    }
+
+    /// Where HTTP nested requests are sent, e.g. "http://127.0.0.1:8081". Empty means the public URL's host and port.
+    public void setNestedRequestLocalAddress(@Nullable String address) {
+        checkSetterPreconditions();
+        nestedRequestLocalAddress = Strings.isNullOrEmpty(address) ? null : parseAddress(address);
+    }
+
+    /// Where HTTP nested requests are sent if the authority token's JSESSIONID belongs to a given cluster node. The
+    /// format is "[node7##http://10.0.0.7:8081 node8##http://10.0.0.8:8081]".
+    public void setNestedRequestNodeAddresses(@Nullable String addresses) {
+        checkSetterPreconditions();
+        nestedRequestNodeAddressesString = addresses;
+    }
+
+    private static @Nonnull HttpHost parseAddress(@Nonnull String address) {
+        try {
+            HttpHost host = HttpHost.create(address);
+            if (!"http".equals(host.getSchemeName()) && !"https".equals(host.getSchemeName())) {
+                throw new IllegalArgumentException("Nested request address must start with http:// or https://");
+            }
+            return host;
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid nested request address: " + address, e);
+        }
+    }
+
+    public void setAuthorityTokenCacheSize(int size) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThanOrEqual(0, size, "authorityTokenCacheSize cannot be negative");
+        authorityTokenCacheSize = size;
+    }
+
+    public void setAuthorityTokenCacheTtl(@Nonnull Duration ttl) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(ttl, "TTL cannot be null");
+        Constraint.isFalse(ttl.isNegative(), "TTL cannot be negative");
+        authorityTokenCacheTtl = ttl;
+    }
+
+    public void setCoalesceMaxSize(int size) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThanOrEqual(0, size, "coalesceMaxSize cannot be negative");
+        coalesceMaxSize = size;
+    }
+
+    public void setCoalesceMaxBodySize(int size) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThanOrEqual(0, size, "coalesceMaxBodySize cannot be negative");
+        coalesceMaxBodySize = size;
+    }
+
+    public void setCoalesceTimeout(@Nonnull Duration timeout) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(timeout, "Timeout cannot be null");
+        Constraint.isFalse(timeout.isNegative() || timeout.isZero(), "Timeout must be positive");
+        coalesceTimeout = timeout;
+    }
+
+    public void setConcurrencyLimitMin(int limit) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, limit, "concurrencyLimitMin must be positive");
+        concurrencyLimitMin = limit;
+    }
+
+    public void setConcurrencyLimitMax(int limit) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThanOrEqual(0, limit, "concurrencyLimitMax cannot be negative");
+        concurrencyLimitMax = limit;
+    }
+
+    public void setConcurrencyLimitLatencyThreshold(@Nonnull Duration threshold) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(threshold, "Threshold cannot be null");
+        Constraint.isFalse(threshold.isNegative() || threshold.isZero(), "Threshold must be positive");
+        concurrencyLimitLatencyThreshold = threshold;
+    }
+
+    /// The longest deadline_ms a client can ask for, and the deadline of requests without deadline_ms.
+    public void setDeadlineMax(@Nonnull Duration max) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(max, "Deadline cannot be null");
+        Constraint.isFalse(max.isNegative() || max.isZero(), "Deadline must be positive");
+        deadlineMax = max;
+    }
+
+    public void setBatchMaxSize(int size) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, size, "batchMaxSize must be positive");
+        batchMaxSize = size;
+    }
+
+    public void setBatchParallelism(int parallelism) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, parallelism, "batchParallelism must be positive");
+        batchParallelism = parallelism;
+    }
+
+    public void setBatchQueueSize(int size) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThanOrEqual(0, size, "batchQueueSize cannot be negative");
+        batchQueueSize = size;
+    }
+
+    public void setAsyncEnabled(boolean enabled) {
+        checkSetterPreconditions();
+        asyncEnabled = enabled;
+    }
+
+    public void setAsyncTimeout(@Nonnull Duration timeout) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(timeout, "Timeout cannot be null");
+        Constraint.isFalse(timeout.isNegative() || timeout.isZero(), "Timeout must be positive");
+        asyncTimeout = timeout;
+    }
+
+    public void setAsyncThreads(int threads) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, threads, "asyncThreads must be positive");
+        asyncThreads = threads;
+    }
+
+    public void setWarmupEnabled(boolean enabled) {
+        checkSetterPreconditions();
+        warmupEnabled = enabled;
+    }
+
+    public void setWarmupConnections(int connections) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, connections, "warmupConnections must be positive");
+        warmupConnections = connections;
+    }
+
+    public void setWarmupRequests(int requests) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThanOrEqual(0, requests, "warmupRequests cannot be negative");
+        warmupRequests = requests;
+    }
+
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -71,43 +397,542 @@ public final class HttpController extends AbstractInitializableComponent {
         if (null == httpClient) {
             throw new ComponentInitializationException("HttpClient cannot be null");
         }
+        if (null == loginHttpClient) {
+            throw new ComponentInitializationException("LoginHttpClient cannot be null");
+        }
         if (null == config) {
             throw new ComponentInitializationException("Config cannot be null");
         }
         if (null == dataSealer) {
             throw new ComponentInitializationException("DataSealer cannot be null");
         }
+        if (null == fabricationTokens) {
+            throw new ComponentInitializationException("FabricationTokens cannot be null");
+        }
+        if (null == metrics) {
+            throw new ComponentInitializationException("FabricationMetrics cannot be null");
+        }
+        if (null == quotas) {
+            throw new ComponentInitializationException("FabricationQuotas cannot be null");
+        }
+        if (null == auditLog) {
+            throw new ComponentInitializationException("AuditLog cannot be null");
+        }
+        if (null == endedSessions) {
+            throw new ComponentInitializationException("EndedSessions cannot be null");
+        }
+        if (null == sessionLivenessCheck) {
+            throw new ComponentInitializationException("SessionLivenessCheck cannot be null");
+        }
         if (Strings.isNullOrEmpty(idpEntityID)) {
             throw new ComponentInitializationException("idpEntityId cannot be null or empty");
         }
+        if (nestedRequestMode == NestedRequestMode.IN_PROCESS
+                && (idpSessionStorageService == null
+                        || !idpSessionStorageService.getCapabilities().isServerSide())) {
+            throw new ComponentInitializationException(
+                    "andrvotr.nestedRequestMode IN_PROCESS requires server-side IdP session storage"
+                            + " (idp.session.StorageService)");
+        }
+        // With client-side storage, the session is in the user's cookie, which the lookup can't see. Every session
+        // would look expired, and every fabrication would fail.
+        if (sessionLivenessCheck.isEnabled()
+                && (idpSessionStorageService == null
+                        || !idpSessionStorageService.getCapabilities().isServerSide())) {
+            throw new ComponentInitializationException(
+                    "andrvotr.sessionCheck.enabled requires server-side IdP session storage"
+                            + " (idp.session.StorageService)");
+        }
+        // After an async timeout, the worker could still be running the in-process flow with the request and response
+        // objects, which the servlet container may already be reusing for another request.
+        if (nestedRequestMode == NestedRequestMode.IN_PROCESS && asyncEnabled) {
+            throw new ComponentInitializationException(
+                    "andrvotr.async.enabled cannot be used with andrvotr.nestedRequestMode IN_PROCESS");
+        }
+
+        authorityTokenCache = new AuthorityTokenCache(authorityTokenCacheSize, authorityTokenCacheTtl);
+        metrics.registerGauge("authorityTokenCache.hits", authorityTokenCache::getHits);
+        metrics.registerGauge("authorityTokenCache.misses", authorityTokenCache::getMisses);
+        metrics.registerGauge("authorityTokenCache.size", authorityTokenCache::size);
+        metrics.registerGauge("sessionCheck.expired", sessionLivenessCheck::getExpired);
+
+        inFlightFabrications = new InFlightFabrications(coalesceMaxSize, coalesceMaxBodySize, coalesceTimeout);
+        metrics.registerGauge("fabricate.coalesced", inFlightFabrications::getCoalesced);
+        metrics.registerGauge("fabricate.inFlight", inFlightFabrications::size);
+
+        if (concurrencyLimitMax > 0 && concurrencyLimitMin > concurrencyLimitMax) {
+            throw new ComponentInitializationException(
+                    "andrvotr.concurrencyLimit.min cannot be larger than andrvotr.concurrencyLimit.max");
+        }
+        concurrencyLimiter = new ConcurrencyLimiter(
+                concurrencyLimitMin, concurrencyLimitMax, concurrencyLimitLatencyThreshold);
+        metrics.registerGauge("concurrencyLimit.limit", concurrencyLimiter::getLimit);
+        metrics.registerGauge("concurrencyLimit.inFlight", concurrencyLimiter::getInFlight);
+        metrics.registerGauge("concurrencyLimit.rejected", concurrencyLimiter::getRejected);
+
+        // Bounded, so that batch requests can't pile up behind each other while holding servlet container threads.
+        // Targets which don't fit are rejected with 503, like targets over the ConcurrencyLimiter limit.
+        batchExecutor = new ThreadPoolExecutor(
+                batchParallelism,
+                batchParallelism,
+                0,
+                TimeUnit.MILLISECONDS,
+                batchQueueSize > 0 ? new ArrayBlockingQueue<>(batchQueueSize) : new SynchronousQueue<>(),
+                newDaemonThreadFactory("andrvotr-fabricate-batch"),
+                new ThreadPoolExecutor.AbortPolicy());
+        if (asyncEnabled) asyncExecutor = newAsyncExecutor();
+
+        Map<String, Set<String>> nodeAddresses = new HashMap<>();
+        Config.parsePairs(
+                nestedRequestNodeAddressesString,
+                "##",
+                "andrvotr.nestedRequest.nodeAddresses",
+                "node ID",
+                "address",
+                nodeAddresses);
+        Map<String, HttpHost> parsedNodeAddresses = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : nodeAddresses.entrySet()) {
+            if (entry.getValue().size() != 1) {
+                throw new ComponentInitializationException(
+                        "andrvotr.nestedRequest.nodeAddresses has more than one address for " + entry.getKey());
+            }
+            try {
+                parsedNodeAddresses.put(entry.getKey(), parseAddress(entry.getValue().iterator().next()));
+            } catch (IllegalArgumentException e) {
+                throw new ComponentInitializationException(e);
+            }
+        }
+        nestedRequestNodeAddresses = Map.copyOf(parsedNodeAddresses);
+
+        log.info("andrvotr nested request mode: {}", nestedRequestMode);
+        if (nestedRequestMode == NestedRequestMode.HTTP && nestedRequestLocalAddress != null) {
+            log.info("andrvotr nested requests are sent to {}", nestedRequestLocalAddress);
+        }
+        if (nestedRequestMode == NestedRequestMode.HTTP && !nestedRequestNodeAddresses.isEmpty()) {
+            log.info("andrvotr nested requests are sent to cluster nodes {}", nestedRequestNodeAddresses);
+        }
+
+        if (warmupEnabled) {
+            String host;
+            try {
+                host = new URL(idpEntityID).getHost();
+            } catch (MalformedURLException e) {
+                throw new ComponentInitializationException("idpEntityID is not a URL", e);
+            }
+            warmup = new FabricationWarmup(
+                    dataSealer,
+                    fabricationTokens,
+                    nestedRequestMode == NestedRequestMode.HTTP ? httpClient : null,
+                    nestedRequestLocalAddress,
+                    host,
+                    warmupConnections,
+                    warmupRequests);
+            Thread thread = new Thread(warmup, "andrvotr-warmup");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (batchExecutor != null) batchExecutor.shutdownNow();
+        if (asyncExecutor != null) asyncExecutor.shutdownNow();
+        super.doDestroy();
+    }
+
+    private static @Nonnull ThreadFactory newDaemonThreadFactory(@Nonnull String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /// Uses virtual threads if the JVM has them (Java 21+), because then waiting for a nested request costs almost
+    /// nothing. We are compiled for Java 17, so we have to look them up with reflection. Otherwise, fall back to a
+    /// fixed pool of platform threads, which at least keeps the waiting out of the servlet container's thread pool.
+    private @Nonnull ExecutorService newAsyncExecutor() {
+        try {
+            ExecutorService executor =
+                    (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.info("andrvotr async mode is using virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            log.info("andrvotr async mode is using {} platform threads", asyncThreads);
+            return Executors.newFixedThreadPool(asyncThreads, newDaemonThreadFactory("andrvotr-fabricate-async"));
+        }
+    }
+
+    /// For load balancer health checks. Returns 503 until the warm-up has finished (if enabled), then 200.
+    @GetMapping("/ready")
+    public void ready(@Nonnull HttpServletRequest httpRequest, @Nonnull HttpServletResponse httpResponse)
+            throws IOException {
+        FabricationWarmup currentWarmup = warmup;
+        boolean ready = currentWarmup == null || currentWarmup.isDone();
+        byte[] body = (ready ? "ready" : "warming up").getBytes(StandardCharsets.UTF_8);
+        httpResponse.setStatus(ready ? 200 : 503);
+        httpResponse.setContentType("text/plain; charset=UTF-8");
+        httpResponse.setHeader("X-Content-Type-Options", "nosniff");
+        httpResponse.setContentLengthLong(body.length);
+        OutputStream stream = httpResponse.getOutputStream();
+        stream.write(body);
+        stream.close();
     }
 
     @PostMapping("/fabricate")
     public void fabricate(@Nonnull HttpServletRequest httpRequest, @Nonnull HttpServletResponse httpResponse)
             throws IOException {
-        if (!Strings.isNullOrEmpty(httpRequest.getQueryString())) {
-            sendError(httpResponse, 400, "Unexpected query string");
+        ValidatedRequest request = validateRequest(httpRequest, httpResponse);
+        if (request == null) return;
+
+        if (asyncEnabled) {
+            if (httpRequest.isAsyncSupported()) {
+                fabricateAsync(httpRequest, httpResponse, request);
+                return;
+            }
+            if (asyncUnsupportedWarned.compareAndSet(false, true)) {
+                log.warn("andrvotr async mode is enabled, but the servlet container does not support async requests for"
+                        + " this servlet (check async-supported in web.xml). falling back to synchronous requests");
+            }
+        }
+
+        FabricationResult result = fabricateOne(httpRequest, httpResponse, request, request.targetUrls().get(0));
+        writeFabricationResult(httpResponse, request, result);
+    }
+
+    /// Runs fabricateOne() on asyncExecutor, so that the container thread can return to the pool while the nested
+    /// request is in progress.
+    private void fabricateAsync(
+            @Nonnull HttpServletRequest httpRequest,
+            @Nonnull HttpServletResponse httpResponse,
+            @Nonnull ValidatedRequest request) {
+        AsyncContext asyncContext = httpRequest.startAsync(httpRequest, httpResponse);
+        asyncContext.setTimeout(asyncTimeout.toMillis());
+
+        // Whoever sets this first (the worker, the timeout or an error) writes the response and completes the context.
+        AtomicBoolean finished = new AtomicBoolean();
+        AtomicReference<Future<?>> future = new AtomicReference<>();
+
+        // Before the worker is submitted, because it may complete the context before addListener() would be called.
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (finished.compareAndSet(false, true)) {
+                    cancel(future.get());
+                    writeFabricationResult(
+                            httpResponse, request, FabricationResult.failure(504, "Nested request timed out"));
+                    asyncContext.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                if (finished.compareAndSet(false, true)) {
+                    log.warn("andrvotr/fabricate async request failed", event.getThrowable());
+                    cancel(future.get());
+                    asyncContext.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {}
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {}
+
+            private void cancel(@Nullable Future<?> worker) {
+                if (worker != null) worker.cancel(true);
+            }
+        });
+
+        future.set(asyncExecutor.submit(() -> {
+            try {
+                FabricationResult result =
+                        fabricateOne(httpRequest, httpResponse, request, request.targetUrls().get(0));
+                if (finished.compareAndSet(false, true)) {
+                    writeFabricationResult(httpResponse, request, result);
+                    asyncContext.complete();
+                } else {
+                    log.warn("andrvotr/fabricate nested request finished after the async timeout");
+                }
+            } catch (Exception e) {
+                log.error("andrvotr/fabricate async nested request failed", e);
+                if (finished.compareAndSet(false, true)) {
+                    try {
+                        writeFabricationResult(
+                                httpResponse, request, FabricationResult.failure(500, "Nested request failed"));
+                    } catch (IOException e2) {
+                        log.debug("could not send error response", e2);
+                    }
+                    asyncContext.complete();
+                }
+            }
+        }));
+    }
+
+    private void writeFabricationResult(
+            @Nonnull HttpServletResponse httpResponse,
+            @Nonnull ValidatedRequest request,
+            @Nonnull FabricationResult result)
+            throws IOException {
+        audit(request, result);
+        if (result.error() != null) {
+            sendError(httpResponse, result.status(), result.error());
             return;
         }
 
+        long start = System.nanoTime();
+        NestedResponse nestedResponse = result.response();
+        log.info("andrvotr/fabricate success, sending SAML response to {}", request.frontEntityID());
+        httpResponse.setStatus(nestedResponse.statusCode());
+        httpResponse.setContentType(nestedResponse.contentType());
+        httpResponse.setContentLengthLong(nestedResponse.body().length);
+        OutputStream stream = httpResponse.getOutputStream();
+        stream.write(nestedResponse.body());
+        stream.close();
+        metrics.recordPhase(FabricationMetrics.Phase.RESPOND, start);
+        metrics.recordSuccess();
+    }
+
+    /// Like /fabricate, but with multiple target_url parameters, which are processed concurrently on batchExecutor
+    /// (in HTTP mode). Each target counts against the ConcurrencyLimiter like a /fabricate request.
+    ///
+    /// The response is a JSON object with a "results" array. It has one element per target_url, in the same order,
+    /// with either "body" (the SAML response page) or "error", and the fabrication trace. Errors which affect the whole
+    /// request (e.g. invalid API key or authority token) are reported the same way as in /fabricate.
+    @PostMapping("/fabricate-batch")
+    public void fabricateBatch(@Nonnull HttpServletRequest httpRequest, @Nonnull HttpServletResponse httpResponse)
+            throws IOException {
+        ValidatedRequest request = validateRequest(httpRequest, httpResponse, "target_url", batchMaxSize);
+        if (request == null) return;
+
+        List<FabricationResult> results = new ArrayList<>();
+        if (nestedRequestMode == NestedRequestMode.IN_PROCESS) {
+            // In-process flows use this request's HttpServletRequest and HttpServletResponse, which are not
+            // thread-safe, so the targets run one at a time in this thread.
+            for (String targetUrl : request.targetUrls()) {
+                try {
+                    results.add(fabricateOne(httpRequest, httpResponse, request, targetUrl));
+                } catch (IOException | RuntimeException e) {
+                    log.error("andrvotr/fabricate-batch nested request failed", e);
+                    results.add(FabricationResult.failure(500, "Nested request failed: " + e));
+                }
+            }
+        } else {
+            List<Future<FabricationResult>> futures = new ArrayList<>();
+            for (String targetUrl : request.targetUrls()) {
+                try {
+                    futures.add(
+                            batchExecutor.submit(() -> fabricateOne(httpRequest, httpResponse, request, targetUrl)));
+                } catch (RejectedExecutionException e) {
+                    futures.add(CompletableFuture.completedFuture(
+                            FabricationResult.failure(503, "Too many concurrent fabrications")));
+                }
+            }
+            for (Future<FabricationResult> future : futures) results.add(awaitBatchResult(request, future));
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"results\":[");
+        for (int i = 0; i < results.size(); i++) {
+            FabricationResult result = results.get(i);
+            audit(request, result);
+            if (result.error() != null) {
+                log.warn("andrvotr/fabricate-batch target failed with error {}: {}", result.status(), result.error());
+                metrics.recordError(result.status(), result.error());
+            } else {
+                metrics.recordSuccess();
+            }
+            if (i != 0) json.append(',');
+            appendJsonResult(json, request.targetUrls().get(i), result);
+        }
+        json.append("]}");
+
+        log.info(
+                "andrvotr/fabricate-batch finished, sending {} results to {}",
+                results.size(),
+                request.frontEntityID());
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        httpResponse.setStatus(200);
+        httpResponse.setContentType("application/json; charset=UTF-8");
+        httpResponse.setHeader("X-Content-Type-Options", "nosniff");
+        httpResponse.setContentLengthLong(body.length);
+        OutputStream stream = httpResponse.getOutputStream();
+        stream.write(body);
+        stream.close();
+    }
+
+    /// Waits for one target of a batch, at most until the request's deadline.
+    private @Nonnull FabricationResult awaitBatchResult(
+            @Nonnull ValidatedRequest request, @Nonnull Future<FabricationResult> future) {
+        try {
+            return future.get(Math.max(0, request.deadlineNanos() - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            return FabricationResult.failure(504, "Deadline exceeded");
+        } catch (ExecutionException e) {
+            log.error("andrvotr/fabricate-batch nested request failed", e.getCause());
+            return FabricationResult.failure(500, "Nested request failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return FabricationResult.failure(500, "Interrupted");
+        }
+    }
+
+    /// Runs the whole login procedure of a back service on the IdP (see BackServiceLogin), so that a front service far
+    /// from the back service needs only one round trip. The parameters are the same as for /fabricate, except that
+    /// `login_url` (one of andrvotr.allowedLoginUrls) replaces `target_url`. The response is a JSON object with the
+    /// back service's Set-Cookie headers.
+    @PostMapping("/login")
+    public void login(@Nonnull HttpServletRequest httpRequest, @Nonnull HttpServletResponse httpResponse)
+            throws IOException {
+        ValidatedRequest request = validateRequest(httpRequest, httpResponse, "login_url", 1);
+        if (request == null) return;
+
+        String loginUrl = request.targetUrls().get(0);
+        String backEntityID = config.getLoginUrlBackService(loginUrl);
+        if (backEntityID == null || !config.isAllowedConnection(request.frontEntityID(), backEntityID)) {
+            reject(httpResponse, request.frontEntityID(), request.startNanos(), 403, "Login URL not allowed");
+            return;
+        }
+
+        BackServiceLogin.Result result;
+        try {
+            result = new BackServiceLogin(loginHttpClient, request.expectedHost(), request.deadlineNanos())
+                    .run(URI.create(loginUrl), targetUrl -> {
+                        // Not coalesced: two logins can't use the same SAML response, the back service would reject
+                        // the second one as a replay.
+                        FabricationResult fabrication =
+                                fabricateOneDirectly(httpRequest, httpResponse, request, targetUrl);
+                        audit(request, fabrication);
+                        return fabrication;
+                    });
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("andrvotr/login request to back service {} failed", backEntityID, e);
+            reject(
+                    httpResponse,
+                    request.frontEntityID(),
+                    request.startNanos(),
+                    502,
+                    "Back service request failed: " + e.getMessage());
+            return;
+        }
+
+        if (result.error() != null) {
+            if (result.fabrication() == null) {
+                reject(httpResponse, request.frontEntityID(), request.startNanos(), result.status(), result.error());
+            } else {
+                sendError(httpResponse, result.status(), result.error());
+            }
+            return;
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"final_url\":");
+        appendJsonString(json, result.finalUrl());
+        json.append(",\"set_cookie\":[");
+        for (int i = 0; i < result.setCookies().size(); i++) {
+            if (i != 0) json.append(',');
+            appendJsonString(json, result.setCookies().get(i));
+        }
+        json.append("],\"trace\":[");
+        List<String> trace = result.fabrication().response().trace();
+        for (int i = 0; i < trace.size(); i++) {
+            if (i != 0) json.append(',');
+            appendJsonString(json, trace.get(i));
+        }
+        json.append("]}");
+
+        log.info(
+                "andrvotr/login success, sending {} cookies of {} to {}",
+                result.setCookies().size(),
+                backEntityID,
+                request.frontEntityID());
+        metrics.recordSuccess();
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        httpResponse.setStatus(200);
+        httpResponse.setContentType("application/json; charset=UTF-8");
+        httpResponse.setHeader("X-Content-Type-Options", "nosniff");
+        httpResponse.setHeader("Cache-Control", "no-store");
+        httpResponse.setContentLengthLong(body.length);
+        OutputStream stream = httpResponse.getOutputStream();
+        stream.write(body);
+        stream.close();
+    }
+
+    /// Performs all checks which don't depend on the target URL. Sends an error and returns null if any of them fail.
+    /// Package-private for andrvotr-benchmarks, like unwrapAuthorityToken().
+    @Nullable ValidatedRequest validateRequest(
+            @Nonnull HttpServletRequest httpRequest, @Nonnull HttpServletResponse httpResponse) throws IOException {
+        return validateRequest(httpRequest, httpResponse, "target_url", 1);
+    }
+
+    /// `urlParameter` is "target_url", or "login_url" for /login. `maxUrls` is how many times it may be repeated.
+    private @Nullable ValidatedRequest validateRequest(
+            @Nonnull HttpServletRequest httpRequest,
+            @Nonnull HttpServletResponse httpResponse,
+            @Nonnull String urlParameter,
+            int maxUrls)
+            throws IOException {
+        long start = System.nanoTime();
+
+        if (!Strings.isNullOrEmpty(httpRequest.getQueryString())) {
+            reject(httpResponse, null, start, 400, "Unexpected query string");
+            return null;
+        }
+
         String frontEntityID = httpRequest.getParameter("front_entity_id");
         String apiKey = httpRequest.getParameter("api_key");
         String authorityToken = httpRequest.getParameter("andrvotr_authority_token");
-        String targetUrl = httpRequest.getParameter("target_url");
-        log.trace("andrvotr/fabricate [{}] [{}] [{}] [{}]", frontEntityID, apiKey, authorityToken, targetUrl);
+        String[] targetUrls = httpRequest.getParameterValues(urlParameter);
+        log.trace(
+                "andrvotr/fabricate [{}] [{}] [{}] {}",
+                frontEntityID,
+                apiKey,
+                authorityToken,
+                targetUrls == null ? null : List.of(targetUrls));
 
         if (Strings.isNullOrEmpty(frontEntityID)
                 || Strings.isNullOrEmpty(apiKey)
                 || Strings.isNullOrEmpty(authorityToken)
-                || Strings.isNullOrEmpty(targetUrl)) {
-            sendError(httpResponse, 400, "Missing required parameter");
-            return;
+                || targetUrls == null
+                || Arrays.stream(targetUrls).anyMatch(Strings::isNullOrEmpty)) {
+            reject(httpResponse, frontEntityID, start, 400, "Missing required parameter");
+            return null;
+        }
+        // Before the quota is acquired, so that a rejected request doesn't use it up.
+        if (targetUrls.length > maxUrls) {
+            String message = maxUrls == 1
+                    ? "Expected exactly one " + urlParameter + " parameter"
+                    : "Too many target URLs, the limit is " + maxUrls;
+            reject(httpResponse, frontEntityID, start, 400, message);
+            return null;
         }
 
+        // Optional. How many milliseconds the client will wait for the response, capped by andrvotr.deadline.max.
+        long deadlineMillis = deadlineMax.toMillis();
+        String deadlineParameter = httpRequest.getParameter("deadline_ms");
+        if (!Strings.isNullOrEmpty(deadlineParameter)) {
+            long clientDeadlineMillis;
+            try {
+                clientDeadlineMillis = Long.parseLong(deadlineParameter);
+            } catch (NumberFormatException e) {
+                clientDeadlineMillis = -1;
+            }
+            if (clientDeadlineMillis <= 0) {
+                reject(httpResponse, frontEntityID, start, 400, "Invalid deadline_ms");
+                return null;
+            }
+            deadlineMillis = Math.min(deadlineMillis, clientDeadlineMillis);
+        }
+        long deadlineNanos = start + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+
         if (!config.isValidApiKey(frontEntityID, apiKey)) {
-            sendError(httpResponse, 403, "Invalid API key or front entity ID");
-            return;
+            reject(httpResponse, frontEntityID, start, 403, "Invalid API key or front entity ID");
+            return null;
         }
+        long tokenStart = metrics.recordPhase(FabricationMetrics.Phase.API_KEY, start);
 
         // Check that the request Host header has the expected value. We will send it a nested request later, and this
         // is a little extra protection against SSRF. Sadly, the IdP does not really know its own hostname. We will use
@@ -115,122 +940,359 @@ public final class HttpController extends AbstractInitializableComponent {
         // hostnames in its entityID and its SAML endpoints.
         String expectedHost = new URL(idpEntityID).getHost();
         if (!expectedHost.equals(httpRequest.getServerName())) {
-            sendError(httpResponse, 400, "Unexpected Host, should be " + expectedHost);
-            return;
+            reject(httpResponse, frontEntityID, start, 400, "Unexpected Host, should be " + expectedHost);
+            return null;
         }
 
-        if (authorityToken.startsWith("E:")) {
-            sendError(httpResponse, 403, "Authority token generator error: " + authorityToken);
-            return;
+        // Before the token is unwrapped, so that a front service over its quota costs us as little as possible.
+        Duration retryAfter = quotas.acquire(frontEntityID, targetUrls.length);
+        if (retryAfter != null) {
+            // Rounded up, so that the client doesn't retry just before the window ends.
+            httpResponse.setHeader("Retry-After", Long.toString((retryAfter.toMillis() + 999) / 1000));
+            reject(httpResponse, frontEntityID, start, 429, "Fabrication quota exceeded");
+            return null;
         }
-        if (!authorityToken.startsWith(Constants.AUTHORITY_TOKEN_OUTER_PREFIX)) {
-            sendError(httpResponse, 403, "Invalid authority token");
-            return;
+
+        if (authorityToken.startsWith("E:")) {
+            reject(httpResponse, frontEntityID, start, 403, "Authority token generator error: " + authorityToken);
+            return null;
         }
-        String unprefixedToken = authorityToken.substring(Constants.AUTHORITY_TOKEN_OUTER_PREFIX.length());
 
-        String plainAuthorityToken;
+        AuthorityToken token;
         try {
-            plainAuthorityToken = dataSealer.unwrap(unprefixedToken);
+            token = unwrapAuthorityToken(authorityToken);
         } catch (DataExpiredException e) {
-            sendError(httpResponse, 403, "Expired authority token");
-            return;
+            reject(httpResponse, frontEntityID, start, 403, "Expired authority token");
+            return null;
         } catch (DataSealerException e) {
-            sendError(httpResponse, 403, "Invalid authority token");
-            return;
+            reject(httpResponse, frontEntityID, start, 403, "Invalid authority token");
+            return null;
+        }
+        if (token == null || !token.isFor(frontEntityID)) {
+            reject(httpResponse, frontEntityID, start, 403, "Invalid authority token");
+            return null;
         }
 
-        // -1 because of https://errorprone.info/bugpattern/StringSplitter
-        String[] parts = plainAuthorityToken.split("\n", -1);
-        log.trace("decrypted authority token parts: {}", List.of(parts));
-        if (parts.length != 3
-                || !Constants.AUTHORITY_TOKEN_INNER_PREFIX.equals(parts[0])
-                || !frontEntityID.equals(parts[1])) {
-            sendError(httpResponse, 403, "Invalid authority token");
-            return;
+        // The user logged out of the IdP after the token was issued, or the session expired. The nested request would
+        // fail anyway. The front service can tell these apart from other errors by the Andrvotr-Error header, and e.g.
+        // ask the user to sign in again.
+        if (endedSessions.isEnded(token)) {
+            httpResponse.setHeader(Constants.HEADER_ANDRVOTR_ERROR, "session_ended");
+            reject(httpResponse, frontEntityID, start, 403, "Session ended");
+            return null;
+        }
+        if (!sessionLivenessCheck.isAlive(token)) {
+            httpResponse.setHeader(Constants.HEADER_ANDRVOTR_ERROR, "session_expired");
+            reject(httpResponse, frontEntityID, start, 403, "Session expired");
+            return null;
         }
 
-        String cookies = parts[2];
+        metrics.recordPhase(FabricationMetrics.Phase.TOKEN, tokenStart);
+        return new ValidatedRequest(start, deadlineNanos, frontEntityID, expectedHost, token, List.of(targetUrls));
+    }
 
-        String expectedPrefix = "https://" + expectedHost + "/idp/profile/SAML2/Redirect/SSO?";
+    /// Sends the nested request for one target URL of a validated request, or waits for an identical one which is
+    /// already in progress (see InFlightFabrications).
+    private @Nonnull FabricationResult fabricateOne(
+            @Nonnull HttpServletRequest httpRequest,
+            @Nonnull HttpServletResponse httpResponse,
+            @Nonnull ValidatedRequest request,
+            @Nonnull String targetUrl)
+            throws IOException {
+        return inFlightFabrications.run(
+                request.frontEntityID(),
+                request.token(),
+                targetUrl,
+                request.deadlineNanos(),
+                () -> fabricateOneDirectly(httpRequest, httpResponse, request, targetUrl));
+    }
+
+    /// Sends the nested request for one target URL of a validated request.
+    private @Nonnull FabricationResult fabricateOneDirectly(
+            @Nonnull HttpServletRequest httpRequest,
+            @Nonnull HttpServletResponse httpResponse,
+            @Nonnull ValidatedRequest request,
+            @Nonnull String targetUrl)
+            throws IOException {
+        String expectedPrefix = "https://" + request.expectedHost() + "/idp/profile/SAML2/Redirect/SSO?";
         if (!targetUrl.startsWith(expectedPrefix)) {
-            sendError(httpResponse, 403, "Invalid target URL");
-            return;
+            return FabricationResult.failure(403, "Invalid target URL");
         }
 
-        // Create an internal token which certifies to the nested request's receiver that we sent it.
+        // Check the allowed connection before doing anything expensive. FabricationWebflowListener checks it again
+        // with the relying party decoded by the flow itself.
+        String backEntityID = SamlRequestIssuer.parse(targetUrl);
+        if (backEntityID == null) {
+            return FabricationResult.failure(403, "Cannot read the SAMLRequest Issuer of the target URL");
+        }
+        if (!config.isAllowedConnection(request.frontEntityID(), backEntityID)) {
+            log.error("forbidden andrvotr connection: front={} back={}", request.frontEntityID(), backEntityID);
+            metrics.recordConnection(request.frontEntityID(), backEntityID, false);
+            return FabricationResult.failure(403, "Connection not allowed: " + backEntityID);
+        }
+
+        // Get an internal token which certifies to the nested request's receiver that we sent it.
         String fabricationToken;
         try {
-            // Expiration just for the sake of it. The exact length doesn't really matter.
-            Instant expiration = Instant.now().plus(Duration.ofMinutes(10));
-            fabricationToken = dataSealer.wrap(Constants.ANDRVOTR_FABRICATION_TOKEN_VALUE, expiration);
+            fabricationToken = fabricationTokens.getToken();
         } catch (Exception e) {
             log.error("DataSealer.wrap failed", e);
-            sendError(httpResponse, 500, "DataSealer.wrap failed");
-            return;
+            return FabricationResult.failure(500, "DataSealer.wrap failed");
         }
 
-        HttpGet nestedRequest = new HttpGet(targetUrl);
-        nestedRequest.addHeader("Cookie", cookies);
-        nestedRequest.addHeader(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_TOKEN, fabricationToken);
-        nestedRequest.addHeader(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_FRONT, frontEntityID);
+        Map<String, String> nestedHeaders = new LinkedHashMap<>();
+        nestedHeaders.put("Cookie", request.token().cookies());
+        nestedHeaders.put(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_TOKEN, fabricationToken);
+        nestedHeaders.put(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_FRONT, request.frontEntityID());
+
+        // Don't start what the client won't wait for. The nested request gets the remaining time, and
+        // FabricationWebflowListener stops the flow when it runs out.
+        long remainingNanos = request.deadlineNanos() - System.nanoTime();
+        if (remainingNanos <= 0) return FabricationResult.failure(504, "Deadline exceeded");
+        long remainingMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+        nestedHeaders.put(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_DEADLINE, Long.toString(remainingMillis));
+
+        // Shed load immediately instead of queueing. Waiting requests would hold servlet container threads which
+        // regular logins need.
+        if (!concurrencyLimiter.tryAcquire()) {
+            return FabricationResult.failure(503, "Too many concurrent fabrications");
+        }
+        long start = System.nanoTime();
+        NestedResponse nestedResponse;
+        try {
+            nestedResponse = nestedRequestMode == NestedRequestMode.IN_PROCESS
+                    ? inProcessSender.send(httpRequest, httpResponse, targetUrl, nestedHeaders)
+                    : sendHttpNestedRequest(
+                            targetUrl, nestedHeaders, getNestedRequestAddress(request.token()), remainingMillis);
+        } catch (InterruptedIOException e) {
+            // Includes connection pool and socket timeouts. If the client's deadline ran out, the nested request was
+            // cut short on purpose, and only its latency tells the limiter anything.
+            boolean deadlineExceeded = System.nanoTime() - request.deadlineNanos() >= 0;
+            concurrencyLimiter.release(start, !deadlineExceeded);
+            if (!deadlineExceeded) throw e;
+            log.warn("andrvotr/fabricate nested request did not finish before the deadline", e);
+            return FabricationResult.failure(504, "Deadline exceeded");
+        } catch (IOException e) {
+            concurrencyLimiter.release(start, true);
+            throw e;
+        } catch (RuntimeException e) {
+            concurrencyLimiter.release(start, false);
+            throw e;
+        }
+        // Error responses don't signal overload by themselves. Many of them are policy rejections, e.g. an invalid
+        // fabrication token from FabricationWebflowListener, and an overloaded flow shows up as latency anyway.
+        concurrencyLimiter.release(start, false);
+        metrics.recordPhase(FabricationMetrics.Phase.NESTED, start);
+        metrics.recordResponseSize(nestedResponse.body().length);
+
+        if (!nestedResponse.isSuccess()) {
+            // Try to log the nested response body if possible.
+            String body = nestedResponse.bodyForLogging(4096);
+            if (body != null) log.warn("andrvotr/fabricate error body: [{}]", body.replace("\n", "[\\n]"));
+
+            String message = String.format(
+                    "Nested request failed: status=%s trace=[%s]",
+                    nestedResponse.statusCode(), String.join(",", nestedResponse.trace()));
+            int status = nestedResponse.trace().contains(Constants.TRACE_DEADLINE_EXCEEDED) ? 504 : 400;
+            return new FabricationResult(status, message, nestedResponse);
+        }
+
+        log.trace("nested request success trace={}", nestedResponse.trace());
+        return new FabricationResult(200, null, nestedResponse);
+    }
+
+    /// Decrypts and parses a V1 or V2 authority token (with the outer prefix), or returns null if it is malformed.
+    @Nullable AuthorityToken unwrapAuthorityToken(@Nonnull String authorityToken) throws DataSealerException {
+        AuthorityToken cached = authorityTokenCache.get(authorityToken);
+        if (cached != null) {
+            log.trace("authority token cache hit: {}", cached);
+            return cached;
+        }
+
+        AuthorityToken result;
+        if (authorityToken.startsWith(Constants.AUTHORITY_TOKEN_OUTER_PREFIX_V2)) {
+            String unprefixedToken = authorityToken.substring(Constants.AUTHORITY_TOKEN_OUTER_PREFIX_V2.length());
+            result = AuthorityTokenCodec.decode(dataSealer.unwrap(AuthorityTokenCodec.fromBase64Url(unprefixedToken)));
+            log.trace("decrypted V2 authority token: {}", result);
+        } else if (authorityToken.startsWith(Constants.AUTHORITY_TOKEN_OUTER_PREFIX)) {
+            result = parseV1AuthorityToken(
+                    dataSealer.unwrap(authorityToken.substring(Constants.AUTHORITY_TOKEN_OUTER_PREFIX.length())));
+        } else {
+            return null;
+        }
+
+        if (result != null) authorityTokenCache.put(authorityToken, result);
+        return result;
+    }
+
+    /// V1 tokens are still accepted, so that front services can use tokens issued before a switch to V2.
+    private @Nullable AuthorityToken parseV1AuthorityToken(@Nonnull String plainAuthorityToken) {
+        // -1 because of https://errorprone.info/bugpattern/StringSplitter
+        String[] parts = plainAuthorityToken.split("\n", -1);
+        log.trace("decrypted authority token parts: {}", List.of(parts));
+        if (parts.length != 3 || !Constants.AUTHORITY_TOKEN_INNER_PREFIX.equals(parts[0])) {
+            return null;
+        }
 
-        httpClient.execute(nestedRequest, (nestedResponse) -> {
-            int statusCode = nestedResponse.getCode();
-            String contentType = nestedResponse.getEntity().getContentType();
-            long contentLength = nestedResponse.getEntity().getContentLength();
+        return new AuthorityToken(parts[1], 0, parts[2], null);
+    }
 
+    /// Returns the address of the cluster node which owns the token's servlet session if it is in
+    /// andrvotr.nestedRequest.nodeAddresses, otherwise the local address, otherwise null (the public URL).
+    ///
+    /// The node is the JSESSIONID suffix after the last ".", e.g. "node7" in "node0abcdef.node7" (Jetty) or
+    /// "ABCDEF.node7" (Tomcat with jvmRoute). The load balancer's sticky sessions use the same suffix. AuthorityToken
+    /// cookies always start with the JSESSIONID cookie.
+    private @Nullable HttpHost getNestedRequestAddress(@Nonnull AuthorityToken token) {
+        if (!nestedRequestNodeAddresses.isEmpty()) {
+            String cookies = token.cookies();
+            int end = cookies.indexOf(';');
+            if (end == -1) end = cookies.length();
+            int dot = cookies.lastIndexOf('.', end - 1);
+            if (dot != -1 && dot > cookies.indexOf('=')) {
+                HttpHost address = nestedRequestNodeAddresses.get(cookies.substring(dot + 1, end));
+                if (address != null) return address;
+            }
+        }
+        return nestedRequestLocalAddress;
+    }
+
+    /// `timeoutMillis` applies to both waiting for a pooled connection and waiting for the response.
+    private @Nonnull NestedResponse sendHttpNestedRequest(
+            @Nonnull String targetUrl,
+            @Nonnull Map<String, String> headers,
+            @Nullable HttpHost address,
+            long timeoutMillis)
+            throws IOException {
+        HttpGet nestedRequest = new HttpGet(targetUrl);
+        headers.forEach(nestedRequest::addHeader);
+        nestedRequest.setConfig(RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(timeoutMillis))
+                .setResponseTimeout(Timeout.ofMilliseconds(timeoutMillis))
+                .build());
+
+        return executeNestedRequest(httpClient, address, nestedRequest, (nestedResponse) -> {
             List<String> trace = Arrays.stream(
                             nestedResponse.getHeaders(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_TRACE))
                     .map(Header::getValue)
                     .collect(Collectors.toList());
 
-            // Only HTTP 200 (e.g. with the HTTP-POST binding) is supported for now. Adding support for 3xx responses,
-            // e.g. for HTTP-Artifact SAML responses, shouldn't be too difficult but hasn't been needed yet.
-            //
-            // This condition relies on an internal implementation detail of saml-abstract-flow.xml: The state that
-            // sends finished SAML responses has id="HandleOutboundMessage".
-            boolean success = statusCode == 200
-                    && contentType != null
-                    && contentType.startsWith("text/html")
-                    && !trace.isEmpty()
-                    && Constants.TRACE_START.equals(trace.get(0))
-                    && trace.contains(Constants.TRACE_ALLOWED_CONNECTION_CHECK_SUCCESS)
-                    && Constants.STATE_HANDLE_OUTBOUND_MESSAGE.equals(trace.get(trace.size() - 1));
-
-            if (!success) {
-                String message = String.format(
-                        "Nested request failed: status=%s trace=[%s]", statusCode, String.join(",", trace));
-                sendError(httpResponse, 400, message);
-
-                // Try to log the nested response body if possible.
-                try {
-                    if ((contentType != null && contentType.startsWith("text/"))
-                            || nestedResponse.getEntity().getContentEncoding() != null) {
-                        String body = EntityUtils.toString(nestedResponse.getEntity(), 4096);
-                        log.warn("andrvotr/fabricate error body: [{}]", body.replace("\n", "[\\n]"));
-                    }
-                } catch (Exception e) {
-                }
+            Header backHeader = nestedResponse.getFirstHeader(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_BACK);
+            Header principalHeader =
+                    nestedResponse.getFirstHeader(Constants.HEADER_ANDRVOTR_INTERNAL_FABRICATION_PRINCIPAL);
+            String backID = backHeader != null ? backHeader.getValue() : null;
+            String principal = principalHeader != null ? principalHeader.getValue() : null;
 
-                return null;
+            HttpEntity entity = nestedResponse.getEntity();
+            if (entity == null) {
+                return new NestedResponse(nestedResponse.getCode(), null, trace, backID, principal, new byte[0]);
             }
 
-            log.trace("nested request success trace={}", trace);
-            log.info("andrvotr/fabricate success, sending SAML response to {}", frontEntityID);
-            httpResponse.setStatus(statusCode);
-            httpResponse.setContentType(contentType);
-            if (contentLength > 0) httpResponse.setContentLengthLong(contentLength);
-            OutputStream stream = httpResponse.getOutputStream();
-            nestedResponse.getEntity().writeTo(stream);
-            stream.close();
-            return null;
+            byte[] body;
+            try (InputStream content = entity.getContent()) {
+                body = content.readNBytes(MAX_NESTED_RESPONSE_SIZE + 1);
+            }
+            if (body.length > MAX_NESTED_RESPONSE_SIZE) {
+                throw new IOException("Nested response is larger than " + MAX_NESTED_RESPONSE_SIZE + " bytes");
+            }
+            return new NestedResponse(
+                    nestedResponse.getCode(), entity.getContentType(), trace, backID, principal, body);
         });
     }
 
+    /// Sends a nested request, to address if it is not null. Also used by FabricationWarmup.
+    static <T> T executeNestedRequest(
+            @Nonnull HttpClient client,
+            @Nullable HttpHost address,
+            @Nonnull HttpGet request,
+            @Nonnull HttpClientResponseHandler<T> handler)
+            throws IOException {
+        if (address == null) return client.execute(request, handler);
+
+        // The connection goes to the given address, but the request line and Host header still come from the URL.
+        // The local connector must trust X-Forwarded-Proto and X-Forwarded-Port, so that the IdP sees the same scheme
+        // and port as in its public URLs (e.g. when it checks the SAML request's Destination).
+        request.addHeader("X-Forwarded-Proto", "https");
+        request.addHeader("X-Forwarded-Port", "443");
+        return client.execute(address, request, handler);
+    }
+
+    private static void appendJsonResult(
+            @Nonnull StringBuilder json, @Nonnull String targetUrl, @Nonnull FabricationResult result) {
+        NestedResponse nestedResponse = result.response();
+        json.append("{\"target_url\":");
+        appendJsonString(json, targetUrl);
+        json.append(",\"status\":").append(result.status());
+        json.append(",\"trace\":[");
+        if (nestedResponse != null) {
+            for (int i = 0; i < nestedResponse.trace().size(); i++) {
+                if (i != 0) json.append(',');
+                appendJsonString(json, nestedResponse.trace().get(i));
+            }
+        }
+        json.append(']');
+        if (result.error() != null) {
+            json.append(",\"error\":");
+            appendJsonString(json, result.error());
+        } else {
+            json.append(",\"content_type\":");
+            appendJsonString(json, nestedResponse.contentType());
+            json.append(",\"body\":");
+            appendJsonString(json, new String(nestedResponse.body(), StandardCharsets.UTF_8));
+        }
+        json.append('}');
+    }
+
+    // Package-private for AuditLog.
+    static void appendJsonString(@Nonnull StringBuilder json, @Nullable String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /// Audits a request which failed before any nested request was sent, and sends the error.
+    private void reject(
+            @Nonnull HttpServletResponse httpResponse,
+            @Nullable String frontEntityID,
+            long startNanos,
+            int status,
+            @Nonnull String message)
+            throws IOException {
+        auditLog.recordFabrication(frontEntityID, null, null, status, message, null, System.nanoTime() - startNanos);
+        sendError(httpResponse, status, message);
+    }
+
+    private void audit(@Nonnull ValidatedRequest request, @Nonnull FabricationResult result) {
+        NestedResponse nestedResponse = result.response();
+        auditLog.recordFabrication(
+                request.frontEntityID(),
+                nestedResponse != null ? nestedResponse.backID() : null,
+                nestedResponse != null ? nestedResponse.principal() : null,
+                result.status(),
+                result.error(),
+                nestedResponse != null ? nestedResponse.trace() : null,
+                System.nanoTime() - request.startNanos());
+    }
+
     private void sendError(@Nonnull HttpServletResponse httpResponse, int status, String message) throws IOException {
         log.warn("andrvotr/fabricate failed with error {}: {}", status, message);
+        metrics.recordError(status, message);
         httpResponse.setStatus(status);
+        // 503 means overload (see ConcurrencyLimiter), which should pass quickly.
+        if (status == 503) httpResponse.setHeader("Retry-After", "1");
         httpResponse.setContentType("text/plain; charset=UTF-8");
         httpResponse.setHeader("X-Content-Type-Options", "nosniff");
         OutputStream stream = httpResponse.getOutputStream();
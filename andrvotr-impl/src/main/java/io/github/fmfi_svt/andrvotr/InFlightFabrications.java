@@ -0,0 +1,161 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+
+/// Coalesces identical concurrent fabrications. Front services with aggressive HTTP client timeouts retry /fabricate
+/// while the first attempt is still running, and each retry would start another identical nested SSO flow.
+///
+/// Fabrications are identical if they have the same front entity ID, authority token cookies (i.e. IdP session) and
+/// target URL. Entries are keyed by a SHA-256 digest of these, so the map doesn't keep the cookies themselves. The
+/// first request runs the fabrication, and identical requests which arrive while it is running wait for its result and
+/// return the same response. The entry is removed as soon as the first request finishes.
+///
+/// Only successful results are shared. If the first request fails (e.g. its client's deadline passed, or the nested
+/// flow returned an error), the waiting requests run their own fabrication, because the failure may not apply to them.
+/// A waiting request waits at most until its own deadline, and then fails with 504 like a slow nested request.
+///
+/// Memory is bounded: if there are maxSize fabrications in flight, new ones run without coalescing, and results with a
+/// body larger than maxBodySize are not shared (waiting requests then run their own fabrication). If the first request
+/// takes longer than `timeout`, its entry is dropped and the next identical request starts over. A maxSize of 0
+/// disables coalescing.
+final class InFlightFabrications {
+
+    /// Runs one fabrication.
+    interface Fabrication {
+        @Nonnull HttpController.FabricationResult run() throws IOException;
+    }
+
+    /// `future` completes with null if the result is not shareable (a failure, or too large).
+    private record Entry(long startNanos, @Nonnull CompletableFuture<HttpController.FabricationResult> future) {}
+
+    private final int maxSize;
+
+    private final int maxBodySize;
+
+    private final long timeoutNanos;
+
+    private final @Nonnull Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final @Nonnull LongAdder coalesced = new LongAdder();
+
+    InFlightFabrications(int maxSize, int maxBodySize, @Nonnull Duration timeout) {
+        this.maxSize = maxSize;
+        this.maxBodySize = maxBodySize;
+        this.timeoutNanos = timeout.toNanos();
+    }
+
+    private static @Nonnull String digest(
+            @Nonnull String frontEntityID, @Nonnull AuthorityToken token, @Nonnull String targetUrl) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // The separator can't occur in entity IDs, cookies or URLs.
+            digest.update(frontEntityID.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(token.cookies().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            return HexFormat.of().formatHex(digest.digest(targetUrl.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Nonnull HttpController.FabricationResult run(
+            @Nonnull String frontEntityID,
+            @Nonnull AuthorityToken token,
+            @Nonnull String targetUrl,
+            long deadlineNanos,
+            @Nonnull Fabrication fabrication)
+            throws IOException {
+        if (maxSize <= 0) return fabrication.run();
+
+        String key = digest(frontEntityID, token, targetUrl);
+        while (true) {
+            Entry existing = entries.get(key);
+            long age = existing == null ? 0 : System.nanoTime() - existing.startNanos();
+            if (existing != null && age >= timeoutNanos) {
+                // The first request is stuck. Forget it and start over.
+                entries.remove(key, existing);
+                continue;
+            }
+
+            if (existing == null) {
+                if (entries.size() >= maxSize) return fabrication.run();
+                Entry entry = new Entry(System.nanoTime(), new CompletableFuture<>());
+                existing = entries.putIfAbsent(key, entry);
+                if (existing == null) return lead(key, entry, fabrication);
+                age = System.nanoTime() - existing.startNanos();
+            }
+
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) return HttpController.FabricationResult.failure(504, "Deadline exceeded");
+
+            long waitNanos = Math.min(Math.max(timeoutNanos - age, 0), remainingNanos);
+            HttpController.FabricationResult result;
+            try {
+                result = existing.future().get(waitNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (System.nanoTime() - deadlineNanos >= 0) {
+                    return HttpController.FabricationResult.failure(504, "Deadline exceeded");
+                }
+                entries.remove(key, existing);
+                continue;
+            } catch (ExecutionException e) {
+                // The first request failed with an exception, which its own client got as an error. Try again.
+                return fabrication.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an identical fabrication");
+            }
+
+            if (result == null) return fabrication.run();
+            coalesced.increment();
+            return result;
+        }
+    }
+
+    private @Nonnull HttpController.FabricationResult lead(
+            @Nonnull String key, @Nonnull Entry entry, @Nonnull Fabrication fabrication) throws IOException {
+        try {
+            HttpController.FabricationResult result = fabrication.run();
+            entry.future().complete(isShareable(result) ? result : null);
+            return result;
+        } catch (Throwable e) {
+            entry.future().completeExceptionally(e);
+            throw e;
+        } finally {
+            entries.remove(key, entry);
+        }
+    }
+
+    private boolean isShareable(@Nonnull HttpController.FabricationResult result) {
+        NestedResponse response = result.response();
+        return result.error() == null
+                && result.status() >= 200
+                && result.status() < 300
+                && (response == null || response.body().length <= maxBodySize);
+    }
+
+    /// Number of requests which got the result of an identical fabrication instead of running their own.
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,111 @@
+package io.github.fmfi_svt.andrvotr;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import net.shibboleth.shared.servlet.impl.HttpServletRequestResponseContext;
+import org.slf4j.Logger;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.support.RequestContextUtils;
+import org.springframework.webflow.context.ExternalContext;
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.context.servlet.DefaultFlowUrlHandler;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.core.collection.LocalAttributeMap;
+import org.springframework.webflow.executor.FlowExecutionResult;
+import org.springframework.webflow.executor.FlowExecutor;
+
+/// Runs the "SAML2/Redirect/SSO" flow in the current thread instead of sending a nested HTTP request to ourselves.
+///
+/// The flow is launched directly on the "flowExecutor" bean (see FabricationWebflowListenerInjector), with a synthetic
+/// request and a buffering response. FabricationWebflowListener and AddressLookupStrategy run exactly like they do for
+/// a nested HTTP request, because they only look at the request headers and the webflow request scope.
+///
+/// Shibboleth code does not always get the current request from the webflow ExternalContext. Some of it (e.g. message
+/// decoders) uses the "shibboleth.HttpServletRequestSupplier" bean, which reads the HttpServletRequestResponseContext
+/// thread local set by a servlet filter. That's why we temporarily replace all the usual thread locals while the flow
+/// runs, and restore them afterwards.
+///
+/// The main difference to a nested HTTP request is that the flow does not get the user's servlet session (the
+/// JSESSIONID from the authority token), but an empty NestedHttpSession. With the IdP's default client-side session
+/// storage, the IdP session is loaded into the servlet session, so "SAML2/Redirect/SSO" would not find it. That's why
+/// HttpController refuses to start in-process mode unless idp.session.StorageService is server-side.
+final class InProcessNestedRequestSender {
+
+    private static final String FLOW_ID = "SAML2/Redirect/SSO";
+
+    private static final String FLOW_EXECUTOR_BEAN = "flowExecutor";
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(InProcessNestedRequestSender.class);
+
+    private final int maxBodySize;
+
+    private volatile @Nullable FlowExecutor flowExecutor;
+
+    InProcessNestedRequestSender(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    private @Nonnull FlowExecutor getFlowExecutor(@Nonnull HttpServletRequest httpRequest) {
+        FlowExecutor result = flowExecutor;
+        if (result == null) {
+            // "flowExecutor" lives in the idp-servlet context, which is a child of the context where HttpController is
+            // defined. So we can't inject it, but DispatcherServlet makes its context available in a request attribute.
+            WebApplicationContext context = RequestContextUtils.findWebApplicationContext(httpRequest);
+            if (context == null) {
+                throw new IllegalStateException("Could not find the WebApplicationContext of the current request");
+            }
+            result = context.getBean(FLOW_EXECUTOR_BEAN, FlowExecutor.class);
+            flowExecutor = result;
+        }
+        return result;
+    }
+
+    @Nonnull NestedResponse send(
+            @Nonnull HttpServletRequest httpRequest,
+            @Nonnull HttpServletResponse httpResponse,
+            @Nonnull String targetUrl,
+            @Nonnull Map<String, String> headers) {
+        FlowExecutor executor = getFlowExecutor(httpRequest);
+
+        NestedHttpServletRequest request = new NestedHttpServletRequest(httpRequest, targetUrl, headers);
+        BufferingHttpServletResponse response = new BufferingHttpServletResponse(httpResponse, maxBodySize);
+        ServletExternalContext externalContext = new ServletExternalContext(
+                httpRequest.getServletContext(), request, response, new DefaultFlowUrlHandler());
+
+        HttpServletRequest previousRequest = HttpServletRequestResponseContext.getRequest();
+        HttpServletResponse previousResponse = HttpServletRequestResponseContext.getResponse();
+        RequestAttributes previousAttributes = RequestContextHolder.getRequestAttributes();
+        ExternalContext previousExternalContext = ExternalContextHolder.getExternalContext();
+        try {
+            HttpServletRequestResponseContext.loadCurrent(request, response);
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request, response));
+            ExternalContextHolder.setExternalContext(externalContext);
+
+            FlowExecutionResult result = executor.launchExecution(FLOW_ID, new LocalAttributeMap<>(), externalContext);
+            // A paused flow wants to show a page to the user (e.g. a login form). That is a failure for us, and the
+            // trace check in HttpController will detect it.
+            log.debug("in-process {} finished, ended = {}", FLOW_ID, result.isEnded());
+        } catch (RuntimeException e) {
+            // This is what the servlet container would do with an exception during a nested HTTP request.
+            log.warn("in-process {} failed", FLOW_ID, e);
+            if (!response.isCommitted()) response.sendError(500);
+        } finally {
+            ExternalContextHolder.setExternalContext(previousExternalContext);
+            RequestContextHolder.setRequestAttributes(previousAttributes);
+            if (previousRequest != null && previousResponse != null) {
+                HttpServletRequestResponseContext.loadCurrent(previousRequest, previousResponse);
+            } else {
+                HttpServletRequestResponseContext.clearCurrent();
+            }
+        }
+
+        return response.toNestedResponse();
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.fmfi_svt.andrvotr;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.WeightedSnapshot;
+import com.codahale.metrics.WeightedSnapshot.WeightedSample;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnull;
+
+/// A histogram reservoir which counts values in power-of-two buckets.
+///
+/// The usual Dropwizard reservoirs allocate a sample object for every update. This one only increments an array
+/// element, so recording a value on the hot path costs no allocation and no lock. The price is precision: a reported
+/// percentile is the upper bound of its bucket, so it can be up to two times larger than the real value. That is good
+/// enough to see where the time goes.
+///
+/// Counts are cumulative since startup, like a Prometheus histogram. Compare two snapshots to see recent behavior.
+final class Log2Reservoir implements Reservoir {
+
+    /// Bucket 0 holds values <= 0, bucket i holds values in [2^(i-1), 2^i - 1].
+    private final @Nonnull AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+
+    private static long upperBound(int bucket) {
+        if (bucket == 0) return 0;
+        if (bucket == Long.SIZE) return Long.MAX_VALUE;
+        return (1L << bucket) - 1;
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (int i = 0; i < buckets.length(); i++) size += buckets.get(i);
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void update(long value) {
+        int bucket = value <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(value);
+        buckets.incrementAndGet(bucket);
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        List<WeightedSample> samples = new ArrayList<>();
+        for (int i = 0; i < buckets.length(); i++) {
+            long count = buckets.get(i);
+            if (count != 0) samples.add(new WeightedSample(upperBound(i), count));
+        }
+        return new WeightedSnapshot(samples);
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.fmfi_svt.andrvotr;
+
+import com.google.common.base.Strings;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.context.SessionContext;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.springframework.webflow.core.collection.MutableAttributeMap;
+import org.springframework.webflow.execution.FlowExecutionListener;
+import org.springframework.webflow.execution.FlowSession;
+import org.springframework.webflow.execution.RequestContext;
+
+/// Tells EndedSessions and AuthorityTokenGenerator when an IdP session is logged out.
+///
+/// It runs in the logout flows ("Logout" and the SAML2 SLO flows, see FabricationWebflowListenerInjector). When such a
+/// flow ends, the session which it logged out is taken from the SessionContext. The flows only put the session there
+/// after they have accepted the logout request (e.g. a SAML2 LogoutRequest which was decoded and matched to the
+/// session), and they destroy it right after that. The IdP session cookie is deliberately not used: anyone can make
+/// the user's browser send a malformed logout request with it, and that must not make their authority tokens useless.
+public final class LogoutWebflowListener extends AbstractInitializableComponent implements FlowExecutionListener {
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(LogoutWebflowListener.class);
+
+    private EndedSessions endedSessions;
+
+    private AuthorityTokenGenerator authorityTokenGenerator;
+
+    public void setEndedSessions(@Nonnull EndedSessions sessions) {
+        checkSetterPreconditions();
+        endedSessions = Constraint.isNotNull(sessions, "EndedSessions cannot be null");
+    }
+
+    public void setAuthorityTokenGenerator(@Nonnull AuthorityTokenGenerator generator) {
+        checkSetterPreconditions();
+        authorityTokenGenerator = Constraint.isNotNull(generator, "AuthorityTokenGenerator cannot be null");
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (null == endedSessions) {
+            throw new ComponentInitializationException("EndedSessions cannot be null");
+        }
+        if (null == authorityTokenGenerator) {
+            throw new ComponentInitializationException("AuthorityTokenGenerator cannot be null");
+        }
+    }
+
+    @Override
+    public void sessionEnding(
+            RequestContext context, FlowSession session, String outcome, MutableAttributeMap<?> output) {
+        // Only the top-level logout flow, not its subflows.
+        if (!session.isRoot()) return;
+
+        String idpSessionId = getIdpSessionId(context);
+        if (Strings.isNullOrEmpty(idpSessionId)) {
+            log.debug(
+                    "logout flow {} ended with outcome {} without resolving an IdP session",
+                    session.getDefinition().getId(),
+                    outcome);
+            return;
+        }
+
+        log.debug("logout flow {} ended IdP session, rejecting its authority tokens", session.getDefinition().getId());
+        endedSessions.recordEnded(idpSessionId);
+        authorityTokenGenerator.invalidateSession(idpSessionId);
+    }
+
+    private @Nullable String getIdpSessionId(RequestContext context) {
+        ProfileRequestContext prc = new WebflowRequestContextProfileRequestContextLookup().apply(context);
+        SessionContext sessionContext = prc != null ? prc.getSubcontext(SessionContext.class) : null;
+        IdPSession idpSession = sessionContext != null ? sessionContext.getIdPSession() : null;
+        return idpSession != null ? idpSession.getId() : null;
+    }
+}
@@ -0,0 +1,263 @@
+package io.github.fmfi_svt.andrvotr;
+
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpSession;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// Synthetic GET request for running "SAML2/Redirect/SSO" in-process, without a loopback HTTP connection.
+///
+/// It pretends to be a plain GET of `targetUrl` which only has the given headers (and cookies parsed from the "Cookie"
+/// header). Everything about the original andrvotr/fabricate request which the nested request would not see if it was
+/// sent over HTTP (its method, POST parameters, headers) is hidden. The remote address etc. are still delegated to the
+/// original request, because there is no portable way to fake them.
+///
+/// Request attributes start as a copy of the original request's attributes (DispatcherServlet's context, locale
+/// resolver etc.), but changes are not shared with it. The servlet session is a NestedHttpSession which lives only as
+/// long as this request. It is not the user's servlet session from the authority token's JSESSIONID, because there is
+/// no portable way to load a session by ID. That's why HttpController only allows in-process mode with server-side IdP
+/// session storage. Each NestedHttpServletRequest must only be used by one thread.
+final class NestedHttpServletRequest extends HttpServletRequestWrapper {
+
+    private final @Nonnull URI targetUri;
+
+    private final @Nonnull String pathInfo;
+
+    private final @Nonnull Map<String, String> headers;
+
+    private final @Nonnull Map<String, String[]> parameters;
+
+    private final @Nullable Cookie[] cookies;
+
+    private final @Nonnull Map<String, Object> attributes = new LinkedHashMap<>();
+
+    private @Nullable HttpSession session;
+
+    NestedHttpServletRequest(
+            @Nonnull HttpServletRequest request, @Nonnull String targetUrl, @Nonnull Map<String, String> newHeaders) {
+        super(request);
+        targetUri = URI.create(targetUrl);
+
+        String prefix = request.getContextPath() + request.getServletPath();
+        String path = targetUri.getRawPath();
+        if (!path.startsWith(prefix)) {
+            throw new IllegalArgumentException(String.format("'%s' does not start with '%s'", path, prefix));
+        }
+        pathInfo = path.substring(prefix.length());
+
+        headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(newHeaders);
+        headers.put("Host", targetUri.getHost());
+
+        parameters = parseQuery(targetUri.getRawQuery());
+        cookies = parseCookies(headers.get("Cookie"));
+
+        for (String name : Collections.list(request.getAttributeNames())) {
+            attributes.put(name, request.getAttribute(name));
+        }
+    }
+
+    private static @Nonnull Map<String, String[]> parseQuery(@Nullable String query) {
+        Map<String, List<String>> lists = new LinkedHashMap<>();
+        if (query != null) {
+            // -1 because of https://errorprone.info/bugpattern/StringSplitter
+            for (String part : query.split("&", -1)) {
+                if (part.isEmpty()) continue;
+                int eq = part.indexOf('=');
+                String name = URLDecoder.decode(eq < 0 ? part : part.substring(0, eq), StandardCharsets.UTF_8);
+                String value = eq < 0 ? "" : URLDecoder.decode(part.substring(eq + 1), StandardCharsets.UTF_8);
+                lists.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+            }
+        }
+        Map<String, String[]> result = new LinkedHashMap<>();
+        lists.forEach((name, values) -> result.put(name, values.toArray(new String[0])));
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static @Nullable Cookie[] parseCookies(@Nullable String header) {
+        if (header == null) return null;
+        List<Cookie> result = new ArrayList<>();
+        // -1 because of https://errorprone.info/bugpattern/StringSplitter
+        for (String cookie : header.split(";", -1)) {
+            int eq = cookie.indexOf('=');
+            if (eq <= 0) continue;
+            result.add(new Cookie(cookie.substring(0, eq).trim(), cookie.substring(eq + 1).trim()));
+        }
+        return result.isEmpty() ? null : result.toArray(new Cookie[0]);
+    }
+
+    @Override
+    public String getMethod() {
+        return "GET";
+    }
+
+    @Override
+    public String getScheme() {
+        return targetUri.getScheme();
+    }
+
+    @Override
+    public boolean isSecure() {
+        return "https".equals(targetUri.getScheme());
+    }
+
+    @Override
+    public String getServerName() {
+        return targetUri.getHost();
+    }
+
+    @Override
+    public String getRequestURI() {
+        return targetUri.getRawPath();
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+        return new StringBuffer(targetUri.getScheme() + "://" + targetUri.getRawAuthority() + targetUri.getRawPath());
+    }
+
+    @Override
+    public String getPathInfo() {
+        return pathInfo.isEmpty() ? null : pathInfo;
+    }
+
+    @Override
+    public String getQueryString() {
+        return targetUri.getRawQuery();
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = parameters.get(name);
+        return values != null ? values[0] : null;
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return parameters;
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        String[] values = parameters.get(name);
+        return values != null ? values.clone() : null;
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        String value = headers.get(name);
+        return Collections.enumeration(value != null ? List.of(value) : List.of());
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(headers.keySet());
+    }
+
+    @Override
+    public int getIntHeader(String name) {
+        String value = headers.get(name);
+        return value != null ? Integer.parseInt(value) : -1;
+    }
+
+    @Override
+    public long getDateHeader(String name) {
+        if (headers.containsKey(name)) throw new IllegalArgumentException("Date headers are not supported");
+        return -1;
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+        return cookies != null ? cookies.clone() : null;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        attributes.remove(name);
+    }
+
+    @Override
+    public HttpSession getSession() {
+        return getSession(true);
+    }
+
+    @Override
+    public HttpSession getSession(boolean create) {
+        if (session == null && create) session = NestedHttpSession.create(getServletContext());
+        return session;
+    }
+
+    @Override
+    public String changeSessionId() {
+        if (session == null) throw new IllegalStateException("No session");
+        // Not a real session, so a new one is as good as a new ID.
+        session = NestedHttpSession.create(getServletContext());
+        return session.getId();
+    }
+
+    @Override
+    public String getRequestedSessionId() {
+        return null;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdValid() {
+        return false;
+    }
+
+    @Override
+    public String getContentType() {
+        return null;
+    }
+
+    @Override
+    public int getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        return -1;
+    }
+}
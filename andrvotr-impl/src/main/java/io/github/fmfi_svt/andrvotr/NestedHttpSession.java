@@ -0,0 +1,80 @@
+package io.github.fmfi_svt.andrvotr;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpSession;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import javax.annotation.Nonnull;
+
+/// Servlet session of a NestedHttpServletRequest. It only lives as long as the in-process SSO flow, like the servlet
+/// session of a nested HTTP request which the IdP creates but nobody ever sends back.
+///
+/// It is a dynamic proxy instead of a class implementing HttpSession, because the set of HttpSession methods depends on
+/// the Servlet API version of the container (Servlet 6 removed the deprecated ones). Methods which are not implemented
+/// throw UnsupportedOperationException. It is only used by one thread.
+final class NestedHttpSession {
+    private NestedHttpSession() {}
+
+    static @Nonnull HttpSession create(@Nonnull ServletContext servletContext) {
+        String id = UUID.randomUUID().toString();
+        long creationTime = System.currentTimeMillis();
+        Map<String, Object> attributes = new HashMap<>();
+        int[] maxInactiveInterval = {0};
+        boolean[] invalidated = {false};
+
+        return (HttpSession) Proxy.newProxyInstance(
+                NestedHttpSession.class.getClassLoader(), new Class<?>[] {HttpSession.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return id;
+                        case "getCreationTime":
+                        case "getLastAccessedTime":
+                            return creationTime;
+                        case "getServletContext":
+                            return servletContext;
+                        case "isNew":
+                            return true;
+                        case "getMaxInactiveInterval":
+                            return maxInactiveInterval[0];
+                        case "setMaxInactiveInterval":
+                            maxInactiveInterval[0] = (Integer) args[0];
+                            return null;
+                        case "invalidate":
+                            invalidated[0] = true;
+                            attributes.clear();
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "NestedHttpSession[" + id + "]";
+                        default:
+                            break;
+                    }
+                    if (invalidated[0]) throw new IllegalStateException("Session is invalidated");
+                    switch (method.getName()) {
+                        case "getAttribute":
+                            return attributes.get((String) args[0]);
+                        case "getAttributeNames":
+                            return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+                        case "setAttribute":
+                            if (args[1] == null) {
+                                attributes.remove((String) args[0]);
+                            } else {
+                                attributes.put((String) args[0], args[1]);
+                            }
+                            return null;
+                        case "removeAttribute":
+                            attributes.remove((String) args[0]);
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException("HttpSession." + method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,44 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// Buffered result of a nested "SAML2/Redirect/SSO" request, regardless of how the request was sent.
+///
+/// `trace` contains the values of all Andrvotr-Internal-Fabrication-Trace headers set by FabricationWebflowListener.
+/// `backID` and `principal` are the Andrvotr-Internal-Fabrication-Back and -Principal headers, if the flow got that
+/// far.
+record NestedResponse(
+        int statusCode,
+        @Nullable String contentType,
+        @Nonnull List<String> trace,
+        @Nullable String backID,
+        @Nullable String principal,
+        @Nonnull byte[] body) {
+
+    /// Checks whether the nested request produced a SAML response we can return to the front service.
+    ///
+    /// Only HTTP 200 (e.g. with the HTTP-POST binding) is supported for now. Adding support for 3xx responses, e.g. for
+    /// HTTP-Artifact SAML responses, shouldn't be too difficult but hasn't been needed yet.
+    ///
+    /// This condition relies on an internal implementation detail of saml-abstract-flow.xml: The state that sends
+    /// finished SAML responses has id="HandleOutboundMessage".
+    boolean isSuccess() {
+        return statusCode == 200
+                && contentType != null
+                && contentType.startsWith("text/html")
+                && !trace.isEmpty()
+                && Constants.TRACE_START.equals(trace.get(0))
+                && trace.contains(Constants.TRACE_ALLOWED_CONNECTION_CHECK_SUCCESS)
+                && Constants.STATE_HANDLE_OUTBOUND_MESSAGE.equals(trace.get(trace.size() - 1));
+    }
+
+    /// Returns a prefix of the body for logging, or null if the body does not look like text.
+    @Nullable String bodyForLogging(int maxLength) {
+        if (contentType == null || !contentType.startsWith("text/")) return null;
+        String text = new String(body, StandardCharsets.UTF_8);
+        return text.length() > maxLength ? text.substring(0, maxLength) : text;
+    }
+}
@@ -0,0 +1,255 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/// A pseudo-redirect: an invisible form which the page submits with JavaScript as soon as it loads. SAML HTTP-POST
+/// responses and requests look like this.
+///
+/// parse() reads the page in one pass, without building a DOM. It only understands as much HTML as these pages need:
+/// tags and their attributes, comments, character references, and script/style elements whose content is skipped
+/// (but still searched for the submit call). It returns the first POST form and its hidden inputs, if the page
+/// contains "document.forms[0].submit()" anywhere, like in README.md's login procedure.
+///
+/// This is a copy of the class with the same name in andrvotr-client, used by BackServiceLogin. The plugin can't depend
+/// on andrvotr-client, because it would have to be added to the plugin distribution. Both copies are tested with the
+/// same pages in resources/pseudo-redirect-forms. Change them together, and add a page for every change in behavior.
+record PseudoRedirectForm(@Nonnull String action, @Nonnull Map<String, String> fields) {
+
+    private static final String SUBMIT_MARKER = "document.forms[0].submit()";
+
+    static @Nullable PseudoRedirectForm parse(@Nonnull Reader reader) throws IOException {
+        return new Parser(reader).parse();
+    }
+
+    private static final class Parser {
+        private final @Nonnull Reader reader;
+
+        /// One character of lookahead, set by unread().
+        private int pushback = -2;
+
+        /// How many characters of SUBMIT_MARKER were just seen. Its first character does not occur in it again, so a
+        /// mismatch can simply start over.
+        private int markerMatched;
+
+        private boolean markerFound;
+
+        private @Nullable String action;
+
+        private final @Nonnull Map<String, String> fields = new LinkedHashMap<>();
+
+        private boolean inForm;
+
+        private boolean formDone;
+
+        Parser(@Nonnull Reader reader) {
+            this.reader = reader;
+        }
+
+        @Nullable PseudoRedirectForm parse() throws IOException {
+            int c;
+            while ((c = read()) != -1) {
+                if (c == '<') readMarkup();
+            }
+            if (!markerFound || action == null) return null;
+            return new PseudoRedirectForm(action, fields);
+        }
+
+        private int read() throws IOException {
+            int c;
+            if (pushback != -2) {
+                c = pushback;
+                pushback = -2;
+                return c;
+            }
+            c = reader.read();
+            if (c != -1 && !markerFound) {
+                if (c == SUBMIT_MARKER.charAt(markerMatched)) {
+                    markerMatched++;
+                    if (markerMatched == SUBMIT_MARKER.length()) markerFound = true;
+                } else {
+                    markerMatched = c == SUBMIT_MARKER.charAt(0) ? 1 : 0;
+                }
+            }
+            return c;
+        }
+
+        private void unread(int c) {
+            pushback = c;
+        }
+
+        /// Called after '<'.
+        private void readMarkup() throws IOException {
+            int c = read();
+            if (c == '!') {
+                // Comment or doctype. A comment ends with "-->", a doctype with '>'.
+                c = read();
+                if (c == '-' && read() == '-') {
+                    skipUntil("-->");
+                } else {
+                    skipUntil(">");
+                }
+                return;
+            }
+
+            boolean closing = c == '/';
+            if (!closing) unread(c);
+            String name = readName();
+            if (name.isEmpty()) return;
+
+            Map<String, String> attributes = readAttributes();
+            if (closing) {
+                if (name.equals("form") && inForm) {
+                    inForm = false;
+                    formDone = true;
+                }
+                return;
+            }
+            handleStartTag(name, attributes);
+            if (name.equals("script") || name.equals("style")) skipUntil("</" + name);
+        }
+
+        private void handleStartTag(@Nonnull String name, @Nonnull Map<String, String> attributes) {
+            if (name.equals("form") && !formDone && !inForm) {
+                if (!"post".equalsIgnoreCase(attributes.get("method"))) return;
+                action = attributes.getOrDefault("action", "");
+                inForm = true;
+            } else if (name.equals("input") && inForm) {
+                String inputName = attributes.get("name");
+                if (inputName != null && "hidden".equalsIgnoreCase(attributes.get("type"))) {
+                    fields.put(inputName, attributes.getOrDefault("value", ""));
+                }
+            }
+        }
+
+        private @Nonnull String readName() throws IOException {
+            StringBuilder name = new StringBuilder();
+            int c;
+            while ((c = read()) != -1 && (Character.isLetterOrDigit(c) || c == '-' || c == ':' || c == '_')) {
+                name.append((char) c);
+            }
+            unread(c);
+            return name.toString().toLowerCase(Locale.ROOT);
+        }
+
+        /// Reads attributes until the end of the tag, including the '>'.
+        private @Nonnull Map<String, String> readAttributes() throws IOException {
+            Map<String, String> attributes = new HashMap<>();
+            while (true) {
+                int c = skipWhitespace();
+                if (c == -1 || c == '>') return attributes;
+                if (c == '/') continue;
+
+                unread(c);
+                String name = readName();
+                if (name.isEmpty()) {
+                    // Something unexpected, e.g. a stray quote. Skip it.
+                    read();
+                    continue;
+                }
+
+                c = skipWhitespace();
+                if (c != '=') {
+                    unread(c);
+                    attributes.putIfAbsent(name, "");
+                    continue;
+                }
+
+                c = skipWhitespace();
+                StringBuilder value = new StringBuilder();
+                if (c == '"' || c == '\'') {
+                    int quote = c;
+                    while ((c = read()) != -1 && c != quote) value.append((char) c);
+                } else {
+                    while (c != -1 && c != '>' && !Character.isWhitespace(c)) {
+                        value.append((char) c);
+                        c = read();
+                    }
+                    unread(c);
+                }
+                attributes.putIfAbsent(name, decodeCharacterReferences(value.toString()));
+            }
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c != -1 && Character.isWhitespace(c));
+            return c;
+        }
+
+        /// Skips everything up to and including `end` (case-insensitive), or to the end of input.
+        private void skipUntil(@Nonnull String end) throws IOException {
+            // The last end.length() characters, so that e.g. "--->" is recognized as the end of a comment.
+            StringBuilder window = new StringBuilder(end.length() + 1);
+            int c;
+            while ((c = read()) != -1) {
+                window.append((char) Character.toLowerCase(c));
+                if (window.length() > end.length()) window.deleteCharAt(0);
+                if (window.length() == end.length() && window.indexOf(end) == 0) return;
+            }
+        }
+    }
+
+    /// Decodes numeric character references and the few named ones that form values need.
+    static @Nonnull String decodeCharacterReferences(@Nonnull String text) {
+        if (text.indexOf('&') == -1) return text;
+
+        StringBuilder result = new StringBuilder(text.length());
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            int semicolon = c == '&' ? text.indexOf(';', i) : -1;
+            if (semicolon == -1) {
+                result.append(c);
+                i++;
+                continue;
+            }
+
+            String reference = text.substring(i + 1, semicolon);
+            int codePoint = decodeReference(reference);
+            if (codePoint == -1) {
+                result.append(c);
+                i++;
+            } else {
+                result.appendCodePoint(codePoint);
+                i = semicolon + 1;
+            }
+        }
+        return result.toString();
+    }
+
+    private static int decodeReference(@Nonnull String reference) {
+        switch (reference) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            default:
+                break;
+        }
+        if (reference.length() < 2 || reference.charAt(0) != '#') return -1;
+        try {
+            boolean hex = reference.charAt(1) == 'x' || reference.charAt(1) == 'X';
+            int codePoint = hex
+                    ? Integer.parseInt(reference.substring(2), 16)
+                    : Integer.parseInt(reference.substring(1), 10);
+            return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package io.github.fmfi_svt.andrvotr;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/// Reads the Issuer of the SAMLRequest in a SAML2/Redirect/SSO URL, i.e. the back entity ID, without OpenSAML.
+///
+/// HttpController uses it to check andrvotr.allowedConnections before sending the nested request, so that disallowed
+/// requests don't cost a nested request and a webflow execution. It only reads as much XML as it needs: the Issuer
+/// must be a child of the root element, and in AuthnRequests it is the first one. FabricationWebflowListener still
+/// checks the relying party which the flow itself decoded, so a mismatch can't bypass anything, it can only cause a
+/// rejection here.
+///
+/// The HTTP-Redirect binding encoding is: DEFLATE (without zlib header), then base64, then URL encoding.
+final class SamlRequestIssuer {
+    private SamlRequestIssuer() {}
+
+    private static final String SAML2_ASSERTION_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+
+    /// AuthnRequests are usually well under 1 KiB. This limit only exists to stop a DEFLATE bomb. Package-private for
+    /// tests.
+    static final int MAX_INFLATED_SIZE = 64 * 1024;
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();
+
+    private static @Nonnull XMLInputFactory newXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /// Returns the Issuer of the SAMLRequest query parameter of `targetUrl`, or null if it can't be decoded or has no
+    /// Issuer.
+    static @Nullable String parse(@Nonnull String targetUrl) {
+        String samlRequest;
+        try {
+            samlRequest = getQueryParameter(URI.create(targetUrl).getRawQuery(), "SAMLRequest");
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (samlRequest == null) return null;
+
+        byte[] xml;
+        try {
+            byte[] deflated = Base64.getMimeDecoder().decode(samlRequest);
+            xml = inflate(deflated);
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+        if (xml == null) return null;
+
+        try {
+            return readIssuer(xml);
+        } catch (XMLStreamException e) {
+            return null;
+        }
+    }
+
+    private static @Nullable String getQueryParameter(@Nullable String rawQuery, @Nonnull String name) {
+        if (rawQuery == null) return null;
+        for (String pair : rawQuery.split("&", -1)) {
+            int equals = pair.indexOf('=');
+            if (equals == -1) continue;
+            if (URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8).equals(name)) {
+                return URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /// Returns null if the result is larger than MAX_INFLATED_SIZE.
+    private static @Nullable byte[] inflate(@Nonnull byte[] deflated) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try (InputStream stream = new InflaterInputStream(new ByteArrayInputStream(deflated), inflater)) {
+            byte[] result = stream.readNBytes(MAX_INFLATED_SIZE + 1);
+            return result.length > MAX_INFLATED_SIZE ? null : result;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static @Nullable String readIssuer(@Nonnull byte[] xml) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(xml));
+        try {
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth == 2
+                            && "Issuer".equals(reader.getLocalName())
+                            && SAML2_ASSERTION_NS.equals(reader.getNamespaceURI())) {
+                        String issuer = reader.getElementText().strip();
+                        return issuer.isEmpty() ? null : issuer;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    // The root element has ended.
+                    if (depth == 0) return null;
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.fmfi_svt.andrvotr;
+
+import com.google.common.base.Strings;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+import net.shibboleth.idp.session.SessionResolver;
+import net.shibboleth.idp.session.criterion.SessionIdCriterion;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.primitive.LoggerFactory;
+import net.shibboleth.shared.resolver.CriteriaSet;
+import net.shibboleth.shared.resolver.ResolverException;
+import org.slf4j.Logger;
+
+/// Optionally checks that the IdP session of an authority token still exists before HttpController sends the nested
+/// request. Expired and idle-timed-out sessions are the most common reason for failed fabrications, and otherwise we
+/// only learn about them after the SSO flow has run for a while.
+///
+/// The session is looked up by ID through the IdP's SessionManager, like PopulateSessionContext does, which doesn't
+/// update its last activity time. Results are cached for cacheTtl, keyed by a SHA-256 digest of the session ID, so that
+/// a front service signing in to several back services doesn't cause a storage read each time. A session which expires
+/// during cacheTtl is still reported as alive, and the nested request then fails like without this check. The cache
+/// has at most maxCacheSize entries. If it is full, expired entries are purged, and if that is not enough, new results
+/// are not cached.
+///
+/// This only works if the IdP keeps sessions in server-side storage which all nodes share. With client-side session
+/// storage, HttpController can't see the session, so it refuses to initialize if this check is enabled. If the lookup
+/// fails, the session is treated as alive.
+public final class SessionLivenessCheck extends AbstractInitializableComponent {
+
+    private record Entry(boolean alive, long expirationNanos) {}
+
+    private final @Nonnull Logger log = LoggerFactory.getLogger(SessionLivenessCheck.class);
+
+    private boolean enabled;
+
+    private SessionResolver sessionResolver;
+
+    private String idpSessionCookieName;
+
+    private @Nonnull Duration cacheTtl = Duration.ofSeconds(10);
+
+    private int maxCacheSize = 10000;
+
+    private final @Nonnull Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+    private final @Nonnull LongAdder expired = new LongAdder();
+
+    public void setEnabled(boolean newEnabled) {
+        checkSetterPreconditions();
+        enabled = newEnabled;
+    }
+
+    public void setSessionResolver(@Nonnull SessionResolver resolver) {
+        checkSetterPreconditions();
+        sessionResolver = Constraint.isNotNull(resolver, "SessionResolver cannot be null");
+    }
+
+    public void setIdpSessionCookieName(@Nonnull String name) {
+        checkSetterPreconditions();
+        Constraint.isFalse(Strings.isNullOrEmpty(name), "idpSessionCookieName cannot be null or empty");
+        idpSessionCookieName = name;
+    }
+
+    public void setCacheTtl(@Nonnull Duration ttl) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(ttl, "TTL cannot be null");
+        Constraint.isFalse(ttl.isNegative(), "TTL cannot be negative");
+        cacheTtl = ttl;
+    }
+
+    public void setMaxCacheSize(int size) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThanOrEqual(0, size, "maxCacheSize cannot be negative");
+        maxCacheSize = size;
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (!enabled) return;
+        if (null == sessionResolver) {
+            throw new ComponentInitializationException("SessionResolver cannot be null");
+        }
+        if (Strings.isNullOrEmpty(idpSessionCookieName)) {
+            throw new ComponentInitializationException("idpSessionCookieName cannot be null or empty");
+        }
+        log.info("andrvotr session liveness check is enabled");
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /// False if the token's IdP session definitely doesn't exist anymore.
+    boolean isAlive(@Nonnull AuthorityToken token) {
+        if (!enabled) return true;
+
+        String idpSessionId = token.getCookie(idpSessionCookieName);
+        if (Strings.isNullOrEmpty(idpSessionId)) return true;
+
+        String key = digest(idpSessionId);
+        long now = System.nanoTime();
+        Entry entry = cache.get(key);
+        if (entry != null && now - entry.expirationNanos() < 0) return entry.alive();
+        if (entry != null) cache.remove(key, entry);
+
+        boolean alive;
+        try {
+            alive = sessionResolver.resolveSingle(new CriteriaSet(new SessionIdCriterion(idpSessionId))) != null;
+        } catch (ResolverException e) {
+            log.warn("andrvotr session liveness check failed, assuming the session is alive", e);
+            return true;
+        }
+        if (!alive) expired.increment();
+
+        if (maxCacheSize > 0 && !cacheTtl.isZero()) {
+            if (cache.size() >= maxCacheSize) cache.values().removeIf(old -> now - old.expirationNanos() >= 0);
+            if (cache.size() < maxCacheSize) cache.put(key, new Entry(alive, now + cacheTtl.toNanos()));
+        }
+        return alive;
+    }
+
+    /// Number of checks which found no session.
+    long getExpired() {
+        return expired.sum();
+    }
+
+    private static @Nonnull String digest(@Nonnull String idpSessionId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(idpSessionId.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package io.github.fmfi_svt.andrvotr;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import org.testng.annotations.Test;
+
+public class AuthorityTokenCodecTest {
+
+    private static final String FRONT_ID = "https://front.example/shibboleth";
+
+    private static final Instant EXPIRATION = Instant.ofEpochMilli(1_800_000_000_123L);
+
+    private static @Nonnull String encodeExample() {
+        Map<String, String> cookies = new LinkedHashMap<>();
+        cookies.put("JSESSIONID", "node0abc.node7");
+        cookies.put("__Host-shib_idp_session", "0123456789abcdef");
+        return AuthorityTokenCodec.encode(FRONT_ID, cookies, EXPIRATION);
+    }
+
+    private static @Nonnull byte[] bytes(@Nonnull String plaintext) {
+        return plaintext.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static @Nonnull String plaintext(@Nonnull byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        AuthorityToken token = AuthorityTokenCodec.decode(encodeExample());
+
+        assertNotNull(token);
+        assertEquals(token.cookies(), "JSESSIONID=node0abc.node7; __Host-shib_idp_session=0123456789abcdef");
+        assertEquals(token.expiration(), EXPIRATION);
+        assertNull(token.frontEntityID());
+        assertTrue(token.isFor(FRONT_ID));
+        assertFalse(token.isFor("https://other.example/shibboleth"));
+    }
+
+    @Test
+    public void testRoundTripNonAscii() {
+        AuthorityToken token = AuthorityTokenCodec.decode(
+                AuthorityTokenCodec.encode(FRONT_ID, Map.of("c", "žltý kôň"), EXPIRATION));
+
+        assertNotNull(token);
+        assertEquals(token.cookies(), "c=žltý kôň");
+    }
+
+    @Test
+    public void testRoundTripNoCookies() {
+        AuthorityToken token = AuthorityTokenCodec.decode(AuthorityTokenCodec.encode(FRONT_ID, Map.of(), EXPIRATION));
+
+        assertNotNull(token);
+        assertEquals(token.cookies(), "");
+    }
+
+    @Test
+    public void testTruncated() {
+        byte[] encoded = bytes(encodeExample());
+        for (int length = 0; length < encoded.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(encoded, 0, truncated, 0, length);
+            assertNull(AuthorityTokenCodec.decode(plaintext(truncated)), "length " + length);
+        }
+    }
+
+    @Test
+    public void testFieldLengthLargerThanRemaining() {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 8 + 1 + 2 + 3);
+        buffer.put((byte) 2);
+        buffer.putLong(EXPIRATION.toEpochMilli());
+        buffer.putLong(AuthorityTokenCodec.frontHash(FRONT_ID));
+        buffer.put((byte) 1);
+        buffer.putShort((short) 0xFFFF);
+        buffer.put(new byte[] {'a', 'b', 'c'});
+
+        assertNull(AuthorityTokenCodec.decode(plaintext(buffer.array())));
+    }
+
+    @Test
+    public void testTrailingBytes() {
+        assertNull(AuthorityTokenCodec.decode(encodeExample() + "\0"));
+    }
+
+    @Test
+    public void testWrongVersion() {
+        for (byte version : new byte[] {0, 1, 3, (byte) 0xFF}) {
+            byte[] encoded = bytes(encodeExample());
+            encoded[0] = version;
+            assertNull(AuthorityTokenCodec.decode(plaintext(encoded)), "version " + version);
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        assertNull(AuthorityTokenCodec.decode(""));
+    }
+
+    /// Lengths 3, 4 and 5 give 0, 2 and 1 padding characters. The bytes are chosen so that the base64 contains both
+    /// '+' and '/'.
+    @Test
+    public void testBase64UrlPadding() {
+        byte[] data = {(byte) 0xFB, (byte) 0xFF, (byte) 0xBF, (byte) 0xFB, (byte) 0xFF};
+        int[] expectedPadding = {0, 2, 1};
+        for (int i = 0; i < expectedPadding.length; i++) {
+            byte[] input = new byte[3 + i];
+            System.arraycopy(data, 0, input, 0, input.length);
+            String base64 = Base64.getEncoder().encodeToString(input);
+            assertEquals(base64.length() - base64.replace("=", "").length(), expectedPadding[i], base64);
+
+            String base64Url = AuthorityTokenCodec.toBase64Url(base64);
+            assertFalse(base64Url.contains("="), base64Url);
+            assertFalse(base64Url.contains("+"), base64Url);
+            assertFalse(base64Url.contains("/"), base64Url);
+            assertEquals(base64Url, Base64.getUrlEncoder().withoutPadding().encodeToString(input));
+            assertEquals(AuthorityTokenCodec.fromBase64Url(base64Url), base64);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.fmfi_svt.andrvotr;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.annotation.Nonnull;
+import org.testng.annotations.Test;
+
+public class ExpiringBloomFilterTest {
+
+    private static final long RETENTION_MILLIS = 3_600_000;
+
+    private static @Nonnull byte[] digest(@Nonnull String value) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAdd() throws Exception {
+        ExpiringBloomFilter filter = new ExpiringBloomFilter(1 << 16, RETENTION_MILLIS);
+        filter.add(digest("a"));
+        assertTrue(filter.mightContain(digest("a")));
+        assertFalse(filter.mightContain(digest("b")));
+    }
+
+    @Test
+    public void testTakeChanges() throws Exception {
+        ExpiringBloomFilter filter = new ExpiringBloomFilter(1 << 16, RETENTION_MILLIS);
+        long slot = filter.currentSlot();
+        assertNull(filter.takeChanges(slot));
+
+        filter.add(digest("a"));
+        assertNotNull(filter.takeChanges(slot));
+        assertNull(filter.takeChanges(slot));
+
+        filter.markChanged(slot);
+        assertNotNull(filter.takeChanges(slot));
+        assertNull(filter.takeChanges(slot - 1));
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        ExpiringBloomFilter local = new ExpiringBloomFilter(1 << 16, RETENTION_MILLIS);
+        ExpiringBloomFilter other = new ExpiringBloomFilter(1 << 16, RETENTION_MILLIS);
+        long slot = local.currentSlot();
+        local.add(digest("a"));
+        long[] words = local.takeChanges(slot);
+        other.merge(slot, words);
+        assertTrue(other.mightContain(digest("a")));
+        assertFalse(other.mightContain(digest("b")));
+        // Merged bits are not this filter's own changes.
+        assertNull(other.takeChanges(slot));
+
+        // Slots which have already expired are ignored.
+        ExpiringBloomFilter expired = new ExpiringBloomFilter(1 << 16, RETENTION_MILLIS);
+        expired.merge(slot - ExpiringBloomFilter.BUCKETS, words);
+        assertFalse(expired.mightContain(digest("a")));
+    }
+}
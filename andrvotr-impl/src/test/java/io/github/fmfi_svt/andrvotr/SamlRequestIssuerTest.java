@@ -0,0 +1,168 @@
+package io.github.fmfi_svt.andrvotr;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import javax.annotation.Nonnull;
+import org.testng.annotations.Test;
+
+public class SamlRequestIssuerTest {
+
+    private static final String BACK_ID = "https://back.example/shibboleth";
+
+    private static final String SSO_URL = "https://idp.example/idp/profile/SAML2/Redirect/SSO";
+
+    private static @Nonnull String authnRequest(@Nonnull String id, @Nonnull String content) {
+        return "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+                + " xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"" + id + "\" Version=\"2.0\""
+                + " IssueInstant=\"2024-01-01T00:00:00Z\" AssertionConsumerServiceURL=\"https://back.example/acs\">"
+                + content
+                + "</samlp:AuthnRequest>";
+    }
+
+    private static @Nonnull String issuer(@Nonnull String entityID) {
+        return "<saml:Issuer>" + entityID + "</saml:Issuer>";
+    }
+
+    /// DEFLATE without zlib header, then base64, like the HTTP-Redirect binding. Not URL encoded yet.
+    private static @Nonnull String encode(@Nonnull String xml) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(xml.getBytes(StandardCharsets.UTF_8));
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return Base64.getEncoder().encodeToString(output.toByteArray());
+    }
+
+    private static @Nonnull String targetUrl(@Nonnull String samlRequest) {
+        return SSO_URL + "?SAMLRequest=" + samlRequest + "&RelayState=ss%3Amem%3A1234";
+    }
+
+    private static @Nonnull String targetUrlOf(@Nonnull String xml) {
+        return targetUrl(URLEncoder.encode(encode(xml), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAuthnRequest() {
+        String xml = authnRequest("_1", issuer(BACK_ID) + "<samlp:NameIDPolicy AllowCreate=\"true\"/>");
+
+        assertEquals(SamlRequestIssuer.parse(targetUrlOf(xml)), BACK_ID);
+    }
+
+    @Test
+    public void testIssuerWithWhitespace() {
+        String xml = authnRequest("_1", "\n  <saml:Issuer>\n  " + BACK_ID + "\n  </saml:Issuer>\n");
+
+        assertEquals(SamlRequestIssuer.parse(targetUrlOf(xml)), BACK_ID);
+    }
+
+    @Test
+    public void testMissingIssuer() {
+        String xml = authnRequest("_1", "<samlp:NameIDPolicy AllowCreate=\"true\"/>");
+
+        assertNull(SamlRequestIssuer.parse(targetUrlOf(xml)));
+    }
+
+    @Test
+    public void testEmptyIssuer() {
+        assertNull(SamlRequestIssuer.parse(targetUrlOf(authnRequest("_1", issuer("")))));
+    }
+
+    @Test
+    public void testIssuerNotChildOfRoot() {
+        String xml = authnRequest(
+                "_1", "<samlp:Extensions>" + issuer("https://evil.example/shibboleth") + "</samlp:Extensions>");
+
+        assertNull(SamlRequestIssuer.parse(targetUrlOf(xml)));
+    }
+
+    @Test
+    public void testIssuerInWrongNamespace() {
+        String xml = authnRequest("_1", "<Issuer xmlns=\"urn:example\">" + BACK_ID + "</Issuer>");
+
+        assertNull(SamlRequestIssuer.parse(targetUrlOf(xml)));
+    }
+
+    @Test
+    public void testRootIssuerAfterNestedIssuer() {
+        String xml = authnRequest(
+                "_1",
+                "<samlp:Extensions>" + issuer("https://evil.example/shibboleth") + "</samlp:Extensions>"
+                        + issuer(BACK_ID));
+
+        assertEquals(SamlRequestIssuer.parse(targetUrlOf(xml)), BACK_ID);
+    }
+
+    @Test
+    public void testDeflateBomb() {
+        // The Issuer comes first, but the whole request is still too large once inflated.
+        String padding = " ".repeat(SamlRequestIssuer.MAX_INFLATED_SIZE);
+        String xml = authnRequest("_1", issuer(BACK_ID) + padding);
+        String samlRequest = encode(xml);
+        assertTrue(samlRequest.length() < 1024, "compressed size " + samlRequest.length());
+
+        assertNull(SamlRequestIssuer.parse(targetUrl(URLEncoder.encode(samlRequest, StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testJustUnderInflatedLimit() {
+        String xml = authnRequest("_1", issuer(BACK_ID));
+        xml = authnRequest("_1", issuer(BACK_ID) + " ".repeat(SamlRequestIssuer.MAX_INFLATED_SIZE - xml.length()));
+
+        assertEquals(SamlRequestIssuer.parse(targetUrlOf(xml)), BACK_ID);
+    }
+
+    @Test
+    public void testDtdRejected() {
+        String xml = "<!DOCTYPE samlp:AuthnRequest [<!ENTITY e \"" + BACK_ID + "\">]>"
+                + authnRequest("_1", "<saml:Issuer>&e;</saml:Issuer>");
+
+        assertNull(SamlRequestIssuer.parse(targetUrlOf(xml)));
+    }
+
+    /// A raw '+' in the query means a space, like in servlet getParameter(), so it must be encoded as %2B. The IdP's
+    /// own decoder sees the same corrupted value, so rejecting it here changes nothing.
+    @Test
+    public void testPlusInQuery() {
+        String xml = null;
+        String samlRequest = null;
+        // Find an ID whose encoded request contains a '+'.
+        for (int i = 0; i < 1000 && (samlRequest == null || !samlRequest.contains("+")); i++) {
+            xml = authnRequest("_" + i, issuer(BACK_ID));
+            samlRequest = encode(xml);
+        }
+        assertNotNull(samlRequest);
+        assertTrue(samlRequest.contains("+"), samlRequest);
+
+        String encoded = URLEncoder.encode(samlRequest, StandardCharsets.UTF_8);
+        assertTrue(encoded.contains("%2B"), encoded);
+        assertEquals(SamlRequestIssuer.parse(targetUrl(encoded)), BACK_ID);
+
+        String rawPlus = encoded.replace("%2B", "+");
+        assertNull(SamlRequestIssuer.parse(targetUrl(rawPlus)));
+    }
+
+    @Test
+    public void testMalformed() {
+        assertNull(SamlRequestIssuer.parse(SSO_URL));
+        assertNull(SamlRequestIssuer.parse(SSO_URL + "?RelayState=x"));
+        assertNull(SamlRequestIssuer.parse(targetUrl("")));
+        assertNull(SamlRequestIssuer.parse(targetUrl("not%20base64%21")));
+        assertNull(SamlRequestIssuer.parse(targetUrl(URLEncoder.encode(
+                Base64.getEncoder().encodeToString("not deflated".getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8))));
+        assertNull(SamlRequestIssuer.parse(targetUrlOf("<not-closed")));
+        assertNull(SamlRequestIssuer.parse(SSO_URL + "?SAMLRequest=%zz"));
+    }
+}